@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ASCII checks done by {@link AsciiScanner} a word at a time with the ones done with a
+ * {@link java.nio.charset.CharsetEncoder} (for strings) or a byte at a time (for arrays and
+ * buffers).
+ *
+ * <p>The input is made of {@link #size} random printable ASCII characters, so that every check
+ * scans it whole. Run it with {@code ./gradlew jmh}, adding {@code -prof gc} to the JMH arguments
+ * to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsciiScannerBenchmark {
+
+  /** The size (in characters) of the input. */
+  @Param({"1024", "65536", "1048576", "10485760"})
+  public int size;
+
+  private String string;
+  private byte[] bytes;
+  private ByteBuffer direct;
+
+  /** Builds the input. */
+  @Setup
+  public void setup() {
+    bytes = new byte[size];
+    final Random random = new Random(42);
+    for (int i = 0; i < size; i++) bytes[i] = (byte) (' ' + random.nextInt('~' - ' ' + 1));
+    string = new String(bytes, StandardCharsets.US_ASCII);
+    direct = ByteBuffer.allocateDirect(size).put(bytes).flip();
+  }
+
+  /**
+   * Checks the string with a new encoder, as {@link ASCIICharSequence#isAscii(String)} used to do.
+   *
+   * @return if the string is ASCII.
+   */
+  @Benchmark
+  public boolean stringEncoder() {
+    return StandardCharsets.US_ASCII.newEncoder().canEncode(string);
+  }
+
+  /**
+   * Checks the string eight characters at a time.
+   *
+   * @return if the string is ASCII.
+   */
+  @Benchmark
+  public boolean stringWords() {
+    return AsciiScanner.isAscii(string);
+  }
+
+  /**
+   * Checks the array a byte at a time.
+   *
+   * @return if the array is ASCII.
+   */
+  @Benchmark
+  public boolean bytesScalar() {
+    for (final byte b : bytes) if (b < 0) return false;
+    return true;
+  }
+
+  /**
+   * Checks the array eight bytes at a time.
+   *
+   * @return if the array is ASCII.
+   */
+  @Benchmark
+  public boolean bytesWords() {
+    return AsciiScanner.isAscii(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Checks the direct buffer a byte at a time, as {@link ASCIICharSequence#of(ByteBuffer)} used to
+   * do.
+   *
+   * @return if the buffer is ASCII.
+   */
+  @Benchmark
+  public boolean directScalar() {
+    for (int i = direct.position(); i < direct.limit(); i++) if (direct.get(i) < 0) return false;
+    return true;
+  }
+
+  /**
+   * Checks the direct buffer eight bytes at a time.
+   *
+   * @return if the buffer is ASCII.
+   */
+  @Benchmark
+  public boolean directWords() {
+    return AsciiScanner.isAscii(direct);
+  }
+}
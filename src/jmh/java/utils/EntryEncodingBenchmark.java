@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scanning of the lines of a message done by {@link LineScanner} eight bytes at a
+ * time with the one done a byte at a time, and measures the whole {@link EntryEncoding#decode}.
+ *
+ * <p>The message has a short text part and an attachment of {@link #size} random bytes, encoded
+ * in Base64 as {@link Base64Encoding#encode(String)} does. Run it with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryEncodingBenchmark {
+
+  /** The size (in bytes) of the attachment, before encoding. */
+  @Param({"4096", "1048576", "16777216"})
+  public int size;
+
+  private byte[] message;
+
+  /** Builds the message. */
+  @Setup
+  public void setup() {
+    final byte[] attachment = new byte[size];
+    new Random(42).nextBytes(attachment);
+    message =
+        ("From: Massimo Santini <santini@di.unimi.it>\n"
+                + "To: prigioniero@di.unimi.it\n"
+                + "Subject: Benchmark\n"
+                + "Date: Wed, 6 Dec 2023 19:22:29 +0100\n"
+                + "MIME-Version: 1.0\n"
+                + "Content-Type: multipart/mixed; boundary=frontier\n"
+                + "\n"
+                + "This is a message with multiple parts in MIME format.\n"
+                + "--frontier\n"
+                + "Content-Type: text/plain; charset=\"us-ascii\"\n"
+                + "\n"
+                + "See the attachment.\n"
+                + "--frontier\n"
+                + "Content-Type: application/octet-stream\n"
+                + "Content-Transfer-Encoding: base64\n"
+                + "Content-Disposition: attachment; filename=\"data.bin\"\n"
+                + "\n"
+                + Base64.getMimeEncoder().encodeToString(attachment)
+                + "\n--frontier--\n")
+            .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Finds the ends of the lines eight bytes at a time.
+   *
+   * @return the number of lines.
+   */
+  @Benchmark
+  public int scanSwar() {
+    int lines = 0;
+    for (int i = 0; i < message.length; lines++)
+      i = LineScanner.lineEnd(message, i, message.length) + 1;
+    return lines;
+  }
+
+  /**
+   * Finds the ends of the lines a byte at a time.
+   *
+   * @return the number of lines.
+   */
+  @Benchmark
+  public int scanScalar() {
+    int lines = 0;
+    for (int i = 0; i < message.length; lines++)
+      i = LineScanner.lineEndScalar(message, i, message.length) + 1;
+    return lines;
+  }
+
+  /**
+   * Decodes the message.
+   *
+   * @return the fragments of the message.
+   */
+  @Benchmark
+  public List<Fragment> decode() {
+    return EntryEncoding.decode(message);
+  }
+}
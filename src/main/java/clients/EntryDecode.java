@@ -0,0 +1,57 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Supplier;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+import utils.Fragment;
+
+/** EntryDecode */
+public class EntryDecode {
+
+  /**
+   * Tests the decoding of the bytes of an entry
+   *
+   * <p>Reads the bytes of a message from the stdin and emits the offset, the raw headers and the
+   * raw body of its fragments, as decoded from an array of bytes, or the error if it can't be
+   * decoded. Then emits whether decoding a heap buffer, a direct buffer and (for ASCII messages) a
+   * sequence of characters gives the same fragments, or the same error.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    byte[] bytes = System.in.readAllBytes();
+    String expected = decode(() -> EntryEncoding.decode(bytes));
+    System.out.println(expected);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    ByteBuffer heap = ByteBuffer.wrap(bytes);
+    System.out.println("Heap buffer: " + expected.equals(decode(() -> EntryEncoding.decode(heap))));
+    System.out.println(
+        "Direct buffer: " + expected.equals(decode(() -> EntryEncoding.decode(direct))));
+    boolean ascii = true;
+    for (byte b : bytes) if (b < 0) ascii = false;
+    if (ascii)
+      System.out.println(
+          "Sequence: "
+              + expected.equals(decode(() -> EntryEncoding.decode(ASCIICharSequence.of(bytes)))));
+  }
+
+  private static String decode(Supplier<List<Fragment>> decoder) {
+    StringBuilder text = new StringBuilder();
+    try {
+      for (Fragment fragment : decoder.get()) {
+        text.append("Fragment at ").append(fragment.offset()).append('\n');
+        for (List<ASCIICharSequence> header : fragment.rawHeaders())
+          text.append("  ").append(header.get(0)).append(": ").append(header.get(1)).append('\n');
+        text.append("  Body:\n").append(fragment.rawBody()).append('\n');
+      }
+    } catch (IllegalArgumentException e) {
+      text.append("Error: ").append(e.getMessage()).append('\n');
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,95 @@
+package clients;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+import utils.EntryParser;
+import utils.Fragment;
+
+/** EntryParse */
+public class EntryParse {
+
+  /**
+   * Tests the incremental parsing of an entry
+   *
+   * <p>Reads the bytes of a message from the stdin and feeds them to a parser in chunks of the
+   * given size. Then emits the headers and the body of the parts it notified, or the error if the
+   * message can't be parsed, and whether they are the fragments, or the error, that decoding the
+   * whole message gives.
+   *
+   * @param args the size of the chunks
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    byte[] bytes = System.in.readAllBytes();
+    int size = Integer.parseInt(args[0]);
+
+    List<String> parts = new ArrayList<>();
+    String parsed;
+    try {
+      EntryParser parser = new EntryParser(new Collector(parts));
+      for (int from = 0; from < bytes.length; from += size)
+        parser.feed(ByteBuffer.wrap(bytes, from, Math.min(size, bytes.length - from)));
+      parser.finish();
+      parsed = String.join("", parts);
+    } catch (IllegalArgumentException e) {
+      parsed = "Error: " + e.getMessage() + "\n";
+    }
+    System.out.print(parsed);
+
+    String decoded;
+    try {
+      StringBuilder text = new StringBuilder();
+      for (Fragment fragment : EntryEncoding.decode(bytes)) {
+        text.append("Part\n");
+        for (List<ASCIICharSequence> header : fragment.rawHeaders())
+          text.append("  ").append(header.get(0)).append(": ").append(header.get(1)).append('\n');
+        text.append("  Body:\n").append(fragment.rawBody()).append('\n');
+      }
+      decoded = text.toString();
+    } catch (IllegalArgumentException e) {
+      decoded = "Error: " + e.getMessage() + "\n";
+    }
+    System.out.println("Matches decode: " + parsed.equals(decoded));
+  }
+
+  /** Collects the parts notified by a parser, in the format of the output. */
+  private static class Collector implements EntryParser.Listener {
+    private final List<String> parts;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private StringBuilder part;
+
+    Collector(List<String> parts) {
+      this.parts = parts;
+    }
+
+    @Override
+    public void partStarted() {
+      part = new StringBuilder("Part\n");
+      body.reset();
+    }
+
+    @Override
+    public void header(ASCIICharSequence name, ASCIICharSequence value) {
+      part.append("  ").append(name).append(": ").append(value).append('\n');
+    }
+
+    @Override
+    public void body(ByteBuffer chunk) {
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      body.writeBytes(bytes);
+    }
+
+    @Override
+    public void partEnded() {
+      part.append("  Body:\n").append(body.toString(StandardCharsets.US_ASCII)).append('\n');
+      parts.add(part.toString());
+    }
+  }
+}
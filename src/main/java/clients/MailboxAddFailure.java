@@ -0,0 +1,55 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import mua.ContentDispositionHeader;
+import mua.Mailbox;
+import mua.MailboxManager;
+import mua.Message;
+import mua.MessagePart;
+import utils.Storage;
+
+/** MailboxAddFailure */
+public class MailboxAddFailure {
+
+  /**
+   * Tests adding messages whose entry can't be created
+   *
+   * <p>On a copy of the mailboxes, whose manager stores the attachments in the blob store, moves
+   * away the directory of the given mailbox and adds to it again its messages with attachments,
+   * whose entries thus can't be created, emitting whether every message was added. Then emits the
+   * number of messages of the mailbox and of files left in the blob store.
+   *
+   * @param args the name of the mailbox
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      Storage storage = new Storage(dir.toString());
+      MailboxManager mailboxManager =
+          new MailboxManager(storage, MailboxManager.LoadMode.EAGER, 1, true);
+      for (Mailbox mailbox : mailboxManager.getMailboxMap().keySet())
+        if (mailbox.name.equals(args[0])) {
+          Files.move(dir.resolve(mailbox.name), dir.resolve(mailbox.name + ".moved"));
+          for (Message message : mailbox.getMessages())
+            for (MessagePart part : message.getParts())
+              if (part.getHeader(ContentDispositionHeader.class) != null) {
+                System.out.println("Added: " + mailboxManager.addMessage(mailbox, message));
+                break;
+              }
+          System.out.println("Messages: " + mailbox.getMessages().size());
+        }
+      int blobs = 0;
+      if (!storage.blobs().isEmpty())
+        try (Stream<Path> walk = Files.walk(dir.resolve(".blobs"))) {
+          blobs = (int) walk.filter(Files::isRegularFile).count();
+        }
+      System.out.println("Blob files: " + blobs);
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
@@ -4,7 +4,7 @@ import java.io.IOException;
 import mua.App;
 import mua.MailboxManager;
 import mua.MissingHeaderException;
-import utils.Storage;
+import utils.Store;
 
 /** MailboxCompose */
 public class MailboxCompose {
@@ -18,7 +18,7 @@ public class MailboxCompose {
    * @param args not used
    */
   public static void main(String[] args) throws IOException, MissingHeaderException {
-    Storage storage = new Storage("tests/mbox");
+    Store storage = App.openStore("tests/mbox");
     MailboxManager mailboxManager = new MailboxManager(storage);
 
     App.startREPL(mailboxManager);
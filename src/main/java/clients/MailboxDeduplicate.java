@@ -0,0 +1,71 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import mua.App;
+import mua.ContentDispositionHeader;
+import mua.Mailbox;
+import mua.MailboxManager;
+import mua.Message;
+import mua.MessagePart;
+import utils.BlobStore;
+import utils.Storage;
+
+/** MailboxDeduplicate */
+public class MailboxDeduplicate {
+
+  /**
+   * Tests the deduplication of attachments
+   *
+   * <p>Runs the app on the commands in the stdin, on a copy of the mailboxes whose manager stores
+   * the attachments in the blob store. Then emits the number of blobs and of their references, the
+   * attachments of the messages of the given mailbox as read by a new manager, and the number of
+   * blobs left once the messages of every mailbox are deleted.
+   *
+   * @param args the name of the mailbox whose attachments are emitted
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      Storage storage = new Storage(dir.toString());
+      MailboxManager mailboxManager =
+          new MailboxManager(storage, MailboxManager.LoadMode.EAGER, 1, true);
+      App.startREPL(mailboxManager);
+
+      printBlobs(dir, storage.blobs());
+      MailboxManager reopened = new MailboxManager(new Storage(dir.toString()));
+      for (Mailbox mailbox : reopened.getMailboxMap().keySet())
+        if (mailbox.name.equals(args[0]))
+          for (Message message : mailbox.getMessages())
+            for (MessagePart part : message.getParts())
+              if (part.getHeader(ContentDispositionHeader.class) != null)
+                System.out.print("Attachment: " + part.getBodyDecoded());
+      for (Mailbox mailbox : List.copyOf(mailboxManager.getMailboxMap().keySet()))
+        mailboxManager.deleteMessages(mailbox, message -> true);
+      printBlobs(dir, storage.blobs());
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+
+  private static void printBlobs(Path dir, BlobStore blobs) throws IOException {
+    Path blobsDir = dir.resolve(".blobs");
+    List<Path> paths = List.of();
+    if (Files.isDirectory(blobsDir))
+      try (Stream<Path> walk = Files.walk(blobsDir)) {
+        paths = walk.filter(Files::isRegularFile).toList();
+      }
+    int count = 0, references = 0;
+    for (Path path : paths) {
+      String name = path.getFileName().toString();
+      if (name.contains(".")) continue;
+      count++;
+      references += blobs.references("sha256:" + name);
+    }
+    System.out.println("Blobs: " + count + ", references: " + references);
+  }
+}
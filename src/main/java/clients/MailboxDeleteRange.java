@@ -0,0 +1,33 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import mua.App;
+import mua.MailboxManager;
+import utils.Storage;
+import utils.Store;
+
+/** MailboxDeleteRange */
+public class MailboxDeleteRange {
+
+  /**
+   * Tests the deletion of ranges of messages
+   *
+   * <p>Runs the app on the commands in the stdin, on a copy of the mailboxes. Then emits the number
+   * of entries left in every box of the copy.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      App.startREPL(new MailboxManager(new Storage(dir.toString())));
+
+      for (Store.Box box : new Storage(dir.toString()).boxes())
+        System.out.println(box + ": " + box.entries().size());
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import mua.App;
+import mua.MailboxManager;
+import mua.QuarantinedEntry;
+import utils.Storage;
+
+/** MailboxLenient */
+public class MailboxLenient {
+
+  private static final String HEADERS =
+      """
+      From: Massimo Santini <santini@unimi.it>
+      To: Studente Pigro <pigro@studenti.unimi.it>
+      """;
+
+  /**
+   * Tests the app on mailboxes containing entries that can't be decoded
+   *
+   * <p>On a copy of the mailboxes, adds to the given mailbox an entry with a bad Date header and
+   * one with an unknown header, then runs the app on the commands in the stdin with a lenient
+   * manager loading the messages in the given mode. Then emits the quarantined entries.
+   *
+   * @param args the name of the mailbox and the load mode
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      Path box = dir.resolve(args[0].replace(':', '/'));
+      write(box.resolve("test-bad-date"), "Subject: Data sbagliata\nDate: ieri\n");
+      write(
+          box.resolve("test-unknown-header"),
+          "Subject: Intestazione ignota\n"
+              + "Date: Sat, 10 Dec 2033 18:08:04 +0100\n"
+              + "X-Ignota: valore\n");
+
+      MailboxManager.LoadMode mode = MailboxManager.LoadMode.valueOf(args[1]);
+      MailboxManager mailboxManager =
+          new MailboxManager(new Storage(dir.toString()), mode, 1, false, true);
+      App.startREPL(mailboxManager);
+
+      for (QuarantinedEntry entry : mailboxManager.getQuarantine())
+        System.out.println("Quarantined: " + entry.getEntry() + ": " + entry.getError());
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+
+  private static void write(Path entry, String headers) throws IOException {
+    Files.writeString(entry, HEADERS + headers + "\nCorpo\n", StandardCharsets.US_ASCII);
+  }
+}
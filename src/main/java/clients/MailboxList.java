@@ -2,7 +2,7 @@ package clients;
 
 import java.io.IOException;
 import mua.*;
-import utils.Storage;
+import utils.Store;
 
 /** MailboxList */
 public class MailboxList {
@@ -16,7 +16,7 @@ public class MailboxList {
    * @throws IOException if an I/O error occurs
    */
   public static void main(String[] args) throws IOException, MissingHeaderException {
-    Storage storage = new Storage("tests/mbox");
+    Store storage = App.openStore("tests/mbox");
     MailboxManager mailboxManager = new MailboxManager(storage);
 
     App.startREPL(mailboxManager);
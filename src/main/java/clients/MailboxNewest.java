@@ -0,0 +1,66 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import mua.Header;
+import mua.HeaderFactory;
+import mua.Mailbox;
+import mua.MailboxManager;
+import mua.Message;
+import mua.MessagePart;
+import mua.SubjectHeader;
+import utils.Storage;
+
+/** MailboxNewest */
+public class MailboxNewest {
+
+  /**
+   * Tests the newest messages of a mailbox
+   *
+   * <p>Reads from the stdin the name of a mailbox, the names of (some of) its entries, oldest
+   * first, and the number of newest messages to emit. On a copy of the mailboxes, sets the last
+   * modified time of the given entries in that order, adds a message to the mailbox and then
+   * emits the subjects of its newest messages.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Scanner scanner = new Scanner(System.in);
+    String name = scanner.next();
+    List<String> entries = new ArrayList<>();
+    while (!scanner.hasNextInt()) entries.add(scanner.next());
+    int n = scanner.nextInt();
+
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      Path box = dir.resolve(name.replace(':', '/'));
+      long time = System.currentTimeMillis() - 3_600_000L * entries.size();
+      for (String entry : entries)
+        Files.setLastModifiedTime(box.resolve(entry), FileTime.fromMillis(time += 3_600_000L));
+
+      MailboxManager mailboxManager = new MailboxManager(new Storage(dir.toString()));
+      for (Mailbox mailbox : mailboxManager.getMailboxMap().keySet())
+        if (mailbox.name.equals(name)) {
+          List<Header> headers =
+              new ArrayList<>(
+                  List.of(
+                      HeaderFactory.createHeader("From", "Massimo Santini <santini@unimi.it>"),
+                      HeaderFactory.createHeader("To", "Studente Pigro <pigro@studenti.unimi.it>"),
+                      HeaderFactory.createHeader("Subject", "Appena arrivato"),
+                      HeaderFactory.createHeader("Date", "Sat, 10 Dec 2011 18:08:04 +0100")));
+          mailboxManager.addMessage(
+              mailbox, new Message(List.of(new MessagePart(headers, "Nuovo\n"))));
+          for (Message message : mailboxManager.getNewestMessages(mailbox, n))
+            System.out.println(message.getSummary().getHeader(SubjectHeader.class).getValue());
+        }
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
@@ -4,7 +4,7 @@ import java.io.IOException;
 import mua.App;
 import mua.MailboxManager;
 import mua.MissingHeaderException;
-import utils.Storage;
+import utils.Store;
 
 /** MailboxRead */
 public class MailboxRead {
@@ -18,7 +18,7 @@ public class MailboxRead {
    * @throws IOException if an I/O error occurs
    */
   public static void main(String[] args) throws IOException, MissingHeaderException {
-    Storage storage = new Storage("tests/mbox");
+    Store storage = App.openStore("tests/mbox");
     MailboxManager mailboxManager = new MailboxManager(storage);
 
     App.startREPL(mailboxManager);
@@ -0,0 +1,36 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import mua.App;
+import mua.MailboxManager;
+import utils.Storage;
+
+/** MailboxSegments */
+public class MailboxSegments {
+
+  /**
+   * Tests the mailboxes converted to the segments layout
+   *
+   * <p>On a copy of the mailboxes, converts every box to the segments layout and emits whether
+   * the conversion succeeded; then runs the app on the commands in the stdin, on the converted
+   * mailboxes opened again. The commands are limited to: MBOX, LSM, LSE, READ.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      boolean converted = true;
+      for (Storage.Box box : new Storage(dir.toString(), Storage.Layout.SEGMENTS).boxes())
+        converted &= box.reshard();
+      System.out.println("Converted: " + converted);
+
+      Storage storage = new Storage(dir.toString(), Storage.Layout.SEGMENTS);
+      App.startREPL(new MailboxManager(storage));
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package clients;
+
+import java.io.IOException;
+import mua.App;
+import mua.MailboxManager;
+import utils.SnapshotStore;
+import utils.Storage;
+import utils.Store;
+
+/** MailboxSnapshot */
+public class MailboxSnapshot {
+
+  /**
+   * Tests the app on a snapshot of the mailboxes
+   *
+   * <p>Runs the app on the commands in the stdin, on a read-only snapshot of the mailboxes; the
+   * commands changing the mailboxes change just the ones of the app.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Store storage = SnapshotStore.of(new Storage("tests/mbox"));
+    MailboxManager mailboxManager = new MailboxManager(storage);
+
+    App.startREPL(mailboxManager);
+  }
+}
@@ -0,0 +1,58 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import mua.MboxImporter;
+import mua.Message;
+import mua.MessagePart;
+import mua.SubjectHeader;
+import utils.EntryEncoding;
+import utils.Storage;
+import utils.Store;
+
+/** MboxImport */
+public class MboxImport {
+
+  /**
+   * Tests the import of an mbox file
+   *
+   * <p>Imports the mbox file in the stdin in a box of an empty storage. Then emits the number of
+   * messages imported, skipped and failed, and the subject and the decoded parts of every message
+   * of the box, sorted.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.empty();
+    try {
+      Storage storage = new Storage(dir.toString());
+      Store.Box box = storage.boxes().get(0).box("imported");
+      MboxImporter importer = new MboxImporter(box);
+      importer.importFrom(System.in);
+      System.out.println(
+          "Imported: "
+              + importer.getImported()
+              + ", skipped: "
+              + importer.getSkipped()
+              + ", failed: "
+              + importer.getFailed());
+      List<String> messages = new ArrayList<>();
+      for (Store.Entry entry : box.entries()) {
+        Message message =
+            new Message(Message.createMessageParts(EntryEncoding.decode(entry.content())));
+        StringBuilder text =
+            new StringBuilder("Subject: " + message.getHeader(SubjectHeader.class).getValue());
+        for (MessagePart part : message.getParts()) text.append('\n').append(part.getBodyDecoded());
+        messages.add(text.toString());
+      }
+      Collections.sort(messages);
+      for (String message : messages) System.out.println(message);
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
@@ -57,7 +57,7 @@ public class MessageDecode {
                 + ", value = "
                 + header.encodeToASCII().toString().replace(headerRawType + ": ", ""));
       }
-      System.out.println("\tRaw body: \n\t\t" + part.body + "\n");
+      System.out.println("\tRaw body: \n\t\t" + part.getBody() + "\n");
     }
   }
 }
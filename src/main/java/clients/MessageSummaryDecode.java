@@ -0,0 +1,55 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import mua.Header;
+import mua.MessageSummary;
+import mua.MissingHeaderException;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+
+/** MessageSummaryDecode */
+public class MessageSummaryDecode {
+
+  /**
+   * Tests the decoding of the summary of a message from its headers alone
+   *
+   * <p>Reads the bytes of a message from the stdin and emits its top-level raw headers, or the
+   * error if they can't be decoded, and whether decoding them from a direct buffer gives the same
+   * ones. Then emits whether decoding the whole message gives the same headers, or its error, and
+   * the headers of the summary of the message, or the error if it can't be built.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    byte[] bytes = System.in.readAllBytes();
+    List<List<ASCIICharSequence>> rawHeaders;
+    try {
+      rawHeaders = EntryEncoding.decodeHeaders(bytes);
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+      return;
+    }
+    for (List<ASCIICharSequence> header : rawHeaders)
+      System.out.println(header.get(0) + ": " + header.get(1));
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    System.out.println("Direct buffer: " + rawHeaders.equals(EntryEncoding.decodeHeaders(direct)));
+
+    try {
+      System.out.println(
+          "Whole message: " + rawHeaders.equals(EntryEncoding.decode(bytes).get(0).rawHeaders()));
+    } catch (IllegalArgumentException e) {
+      System.out.println("Whole message error: " + e.getMessage());
+    }
+
+    try {
+      MessageSummary summary = MessageSummary.fromRawHeaders(rawHeaders);
+      System.out.println("Summary:");
+      for (Header header : summary.getHeaders()) System.out.println(header.encodeToASCII());
+    } catch (IllegalArgumentException | MissingHeaderException e) {
+      System.out.println("Summary error: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package clients;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import utils.ASCIICharSequence;
+import utils.Storage;
+import utils.Store;
+
+/** SegmentCompaction */
+public class SegmentCompaction {
+
+  /**
+   * Tests the compaction of a box stored in segments
+   *
+   * <p>Reads from the stdin the number of entries to create, the step of the entries to delete
+   * before compacting (every step-th entry is deleted) and the number of entries to create, and
+   * to delete, while the box is compacted. Then emits the number of entries of the box and whether
+   * their content is the expected one, before and after the storage is opened again.
+   *
+   * @param args not used
+   * @throws Exception if an I/O error occurs
+   */
+  public static void main(String[] args) throws Exception {
+    Scanner scanner = new Scanner(System.in);
+    int entries = scanner.nextInt(), step = scanner.nextInt(), concurrent = scanner.nextInt();
+
+    Path dir = TestTrees.empty();
+    try {
+      Storage storage = new Storage(dir.toString(), Storage.Layout.SEGMENTS);
+      Storage.Box box = storage.boxes().get(0).box("box");
+      Map<String, String> expected = new HashMap<>();
+      List<Store.Entry> created = new ArrayList<>();
+      for (int i = 0; i < entries; i++) {
+        String content = "Entry " + i + "\n" + "x".repeat(1000 + 97 * i) + "\n";
+        Store.Entry entry = box.entry(ASCIICharSequence.of(content));
+        created.add(entry);
+        expected.put(entry.toString(), content);
+      }
+      for (int i = 0; i < entries; i += step) {
+        created.get(i).delete();
+        expected.remove(created.get(i).toString());
+      }
+
+      CompletableFuture<Boolean> compaction = CompletableFuture.supplyAsync(box::compact);
+      for (int i = 0; i < concurrent; i++) {
+        String content = "Concurrent " + i + "\n";
+        Store.Entry entry = box.entry(ASCIICharSequence.of(content));
+        expected.put(entry.toString(), content);
+        Store.Entry deleted = created.get(1 + i % (entries - 1));
+        if (expected.remove(deleted.toString()) != null) deleted.delete();
+      }
+      System.out.println("Compacted: " + compaction.get());
+
+      print("Entries", box, expected);
+      Storage reopened = new Storage(dir.toString(), Storage.Layout.SEGMENTS);
+      for (Store.Box reopenedBox : reopened.boxes())
+        if (reopenedBox.toString().equals("box")) print("Reopened entries", reopenedBox, expected);
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+
+  private static void print(String title, Store.Box box, Map<String, String> expected) {
+    Map<String, String> actual = new HashMap<>();
+    for (Store.Entry entry : box.entries())
+      actual.put(entry.toString(), entry.content().toString());
+    System.out.println(title + ": " + actual.size());
+    System.out.println("Contents match: " + actual.equals(expected));
+  }
+}
@@ -0,0 +1,47 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import utils.ASCIICharSequence;
+import utils.Storage;
+import utils.Store;
+
+/** StorageCompression */
+public class StorageCompression {
+
+  /**
+   * Tests the compressed entries of the storage
+   *
+   * <p>Creates a compressed entry and emits whether its file is smaller than its content, and
+   * whether the content read is the original one. Then replaces the length of the content
+   * recorded in the file with the given ones, and emits for every one whether the entry can still
+   * be read.
+   *
+   * @param args the lengths to record
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.empty();
+    try {
+      Storage storage = new Storage(dir.toString(), Storage.Layout.FILES, 9);
+      String content = "Subject: compressed\n\n" + "Lorem ipsum dolor sit amet\n".repeat(1000);
+      Store.Entry entry = storage.boxes().get(0).entry(ASCIICharSequence.of(content));
+      Path file = dir.resolve(entry.toString());
+      byte[] bytes = Files.readAllBytes(file);
+      System.out.println("Compressed: " + (bytes.length < content.length()));
+      System.out.println("Content matches: " + entry.content().toString().equals(content));
+
+      for (String length : args) {
+        byte[] corrupt = Arrays.copyOf(bytes, bytes.length);
+        ByteBuffer.wrap(corrupt).putInt(4, Integer.parseInt(length));
+        Files.write(file, corrupt);
+        System.out.println("Length " + length + ": " + (entry.content() != null));
+      }
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+}
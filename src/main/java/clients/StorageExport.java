@@ -0,0 +1,111 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import mua.MboxImporter;
+import mua.Message;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+import utils.Storage;
+import utils.StorageExporter;
+import utils.Store;
+
+/** StorageExport */
+public class StorageExport {
+
+  /**
+   * Tests the export of the storage
+   *
+   * <p>On a copy of the mailboxes, with a further message whose body has lines starting with
+   * {@code From }, emits whether the mbox exported with one and with many threads are the same,
+   * how many messages are imported back from it and whether they are the original ones, and
+   * whether the ranges listed by the index of the exported archive hold the original entries.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Path dir = TestTrees.copy("tests/mbox"), out = TestTrees.empty(), imported = TestTrees.empty();
+    try {
+      Storage storage = new Storage(dir.toString());
+      storage
+          .boxes()
+          .get(0)
+          .entry(
+              ASCIICharSequence.of(
+                  "From: alice@example.com\nTo: bob@example.com\nSubject: From lines\n"
+                      + "Date: Mon, 4 Dec 2023 18:34:50 +0100\n\n"
+                      + "From here on\n>From there\n\nFrom the start of a paragraph\n"));
+
+      Path single = out.resolve("single.mbox"), many = out.resolve("many.mbox");
+      new StorageExporter(storage, 1).export(single, StorageExporter.Format.MBOX);
+      new StorageExporter(storage, 4).export(many, StorageExporter.Format.MBOX);
+      System.out.println(
+          "Deterministic: " + Arrays.equals(Files.readAllBytes(single), Files.readAllBytes(many)));
+
+      Store.Box box = new Storage(imported.toString()).boxes().get(0).box("imported");
+      MboxImporter importer = new MboxImporter(box);
+      importer.importFrom(single);
+      List<String> expected = new ArrayList<>(), actual = new ArrayList<>();
+      for (Store.Box originalBox : storage.boxes())
+        for (Store.Entry entry : originalBox.entries()) expected.add(normalize(entry));
+      for (Store.Entry entry : box.entries()) actual.add(normalize(entry));
+      Collections.sort(expected);
+      Collections.sort(actual);
+      System.out.println(
+          "Imported: " + importer.getImported() + ", match: " + expected.equals(actual));
+
+      Path archive = out.resolve("archive.tar");
+      new StorageExporter(storage, 4).export(archive, StorageExporter.Format.ARCHIVE);
+      byte[] bytes = Files.readAllBytes(archive);
+      Map<String, String> entries = new HashMap<>(), ranges = new HashMap<>();
+      for (Storage.Box storageBox : storage.boxes()) {
+        String prefix =
+            storageBox.toString().equals("INBOX")
+                ? ""
+                : storageBox.toString().replace(':', '/') + "/";
+        for (Store.Entry entry : storageBox.entries())
+          entries.put(prefix + entry, entry.content().toString());
+      }
+      for (String line : index(bytes).split("\n")) {
+        String[] fields = line.split(" ", 3);
+        int offset = Integer.parseInt(fields[0]), length = Integer.parseInt(fields[1]);
+        ranges.put(fields[2], new String(bytes, offset, length, StandardCharsets.US_ASCII));
+      }
+      System.out.println(
+          "Archive entries: " + ranges.size() + ", match: " + ranges.equals(entries));
+    } finally {
+      TestTrees.delete(dir);
+      TestTrees.delete(out);
+      TestTrees.delete(imported);
+    }
+  }
+
+  private static String normalize(Store.Entry entry) {
+    return new Message(Message.createMessageParts(EntryEncoding.decode(entry.content())))
+        .encodeToASCII()
+        .toString();
+  }
+
+  private static String index(byte[] archive) {
+    for (int header = 0; header + 512 <= archive.length; ) {
+      int end = 0;
+      while (end < 100 && archive[header + end] != 0) end++;
+      String name = new String(archive, header, end, StandardCharsets.US_ASCII);
+      int size =
+          Integer.parseInt(new String(archive, header + 124, 11, StandardCharsets.US_ASCII), 8);
+      if (name.equals(StorageExporter.Format.INDEX))
+        return new String(archive, header + 512, size, StandardCharsets.US_ASCII);
+      header += 512 + (size + 511) / 512 * 512;
+    }
+    return "";
+  }
+}
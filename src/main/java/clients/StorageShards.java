@@ -0,0 +1,73 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import utils.ASCIICharSequence;
+import utils.Storage;
+import utils.Store;
+
+/** StorageShards */
+public class StorageShards {
+
+  /**
+   * Tests the sharded layout of the storage
+   *
+   * <p>On a copy of the mailboxes, emits the boxes and their entries as seen through the sharded
+   * layout before and after moving the entries into their shards, and the ones seen through the
+   * files layout before and after moving them back; for every box, emits whether the contents of
+   * its entries are the original ones and how many files are left directly in its directory.
+   *
+   * @param args not used
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Map<String, String> original = contents(new Storage("tests/mbox"));
+    Path dir = TestTrees.copy("tests/mbox");
+    try {
+      Storage sharded = new Storage(dir.toString(), Storage.Layout.SHARDED);
+      print("Sharded, before", sharded, dir, original);
+      for (Storage.Box box : sharded.boxes()) box.reshard();
+      print("Sharded, after", sharded, dir, original);
+
+      Storage.Box box = sharded.boxes().get(0);
+      Store.Entry entry = box.entry(ASCIICharSequence.of("Subject: nuovo\n\nCorpo\n"));
+      System.out.println("Created: " + box.entries().contains(entry));
+      System.out.println("Deleted: " + (entry.delete() && !box.entries().contains(entry)));
+
+      Storage files = new Storage(dir.toString());
+      print("Files, before", files, dir, original);
+      for (Storage.Box filesBox : files.boxes()) filesBox.reshard();
+      print("Files, after", files, dir, original);
+    } finally {
+      TestTrees.delete(dir);
+    }
+  }
+
+  private static Map<String, String> contents(Storage storage) {
+    Map<String, String> contents = new HashMap<>();
+    for (Store.Box box : storage.boxes())
+      for (Store.Entry entry : box.entries())
+        contents.put(box + "/" + entry, entry.content().toString());
+    return contents;
+  }
+
+  private static void print(String title, Storage storage, Path dir, Map<String, String> original)
+      throws IOException {
+    System.out.println(title + ":");
+    Map<String, String> contents = contents(storage);
+    for (Store.Box box : storage.boxes()) {
+      long loose;
+      String name = box.toString().equals("INBOX") ? "" : box.toString().replace(':', '/');
+      Path boxDir = dir.resolve(name);
+      try (Stream<Path> files = Files.list(boxDir)) {
+        loose = files.filter(Files::isRegularFile).count();
+      }
+      System.out.println(box + ": " + box.entries().size() + " entries, " + loose + " loose files");
+    }
+    System.out.println("Contents match: " + contents.equals(original));
+  }
+}
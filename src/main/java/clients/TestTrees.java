@@ -0,0 +1,57 @@
+package clients;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Temporary mailbox trees, for the clients that change the mailboxes they test. */
+final class TestTrees {
+
+  private TestTrees() {}
+
+  /**
+   * Creates an empty temporary directory.
+   *
+   * @return the path of the directory
+   * @throws IOException if an I/O error occurs
+   */
+  static Path empty() throws IOException {
+    return Files.createTempDirectory("mua-test");
+  }
+
+  /**
+   * Copies the given directory, including its hidden files, to a temporary directory.
+   *
+   * @param dir the directory to copy
+   * @return the path of the copy
+   * @throws IOException if an I/O error occurs
+   */
+  static Path copy(String dir) throws IOException {
+    Path source = Path.of(dir), copy = empty();
+    try (Stream<Path> paths = Files.walk(source)) {
+      for (Path path : paths.toList()) {
+        Path target = copy.resolve(source.relativize(path).toString());
+        if (Files.isDirectory(path)) Files.createDirectories(target);
+        else Files.copy(path, target);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Deletes the given directory and its content.
+   *
+   * @param dir the directory
+   * @throws IOException if an I/O error occurs
+   */
+  static void delete(Path dir) throws IOException {
+    List<Path> paths;
+    try (Stream<Path> walk = Files.walk(dir)) {
+      paths = walk.sorted(Comparator.reverseOrder()).toList();
+    }
+    for (Path path : paths) Files.deleteIfExists(path);
+  }
+}
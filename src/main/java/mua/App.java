@@ -6,6 +6,7 @@
 
 package mua;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +14,15 @@ import utils.*;
 
 /** The application class */
 public class App {
+  /** The system property choosing the implementation of the store, see {@link #openStore} */
+  public static final String STORE_PROPERTY = "mua.store";
+
+  /**
+   * The system property that, if {@code true}, makes the entries that can't be decoded be
+   * quarantined instead of failing the load, see {@link MailboxManager#getQuarantine()}
+   */
+  public static final String LENIENT_PROPERTY = "mua.lenient";
+
   /**
    * Runs the REPL.
    *
@@ -29,10 +39,55 @@ public class App {
     }
 
     String mailboxBaseDir = args[0];
-    Storage storage = new Storage(mailboxBaseDir);
-    MailboxManager mailboxManager = new MailboxManager(storage);
+    Store storage = openStore(mailboxBaseDir);
+    MailboxManager mailboxManager;
+    if (Boolean.getBoolean(LENIENT_PROPERTY)) {
+      mailboxManager =
+          new MailboxManager(
+              storage, null, Runtime.getRuntime().availableProcessors(), false, true);
+      List<QuarantinedEntry> quarantine = mailboxManager.getQuarantine();
+      if (!quarantine.isEmpty())
+        System.err.println(quarantine.size() + " entries quarantined, they can't be decoded");
+    } else mailboxManager = new MailboxManager(storage);
+
+    Closeable watch = null;
+    try {
+      watch = mailboxManager.watch();
+    } catch (UnsupportedOperationException e) {
+      // the store can't change behind our back
+    }
+    try {
+      startREPL(mailboxManager);
+    } finally {
+      if (watch != null) watch.close();
+    }
+  }
 
-    startREPL(mailboxManager);
+  /**
+   * Opens the store of the mailboxes in the given base directory.
+   *
+   * <p>The implementation of the store is chosen by the {@value #STORE_PROPERTY} system property:
+   * {@code files} (the default) for a {@link Storage} of the directory, {@code memory} for a {@link
+   * MemoryStore} copy of its content (changes are not written back to the directory), {@code
+   * snapshot} for a read-only {@link SnapshotStore} of its content.
+   *
+   * @param baseDir the mailbox base directory
+   * @return the store
+   * @throws IllegalArgumentException if the directory is not valid, or the property has an unknown
+   *     value
+   */
+  public static Store openStore(String baseDir) throws IllegalArgumentException {
+    String implementation = System.getProperty(STORE_PROPERTY, "files");
+    switch (implementation) {
+      case "files":
+        return new Storage(baseDir);
+      case "memory":
+        return MemoryStore.copyOf(new Storage(baseDir));
+      case "snapshot":
+        return SnapshotStore.of(new Storage(baseDir));
+      default:
+        throw new IllegalArgumentException("Unknown store: " + implementation);
+    }
   }
 
   /**
@@ -95,8 +150,14 @@ public class App {
               ui.error("Invalid message index");
               break;
             }
-            Message message = messages.get(index);
-            ui.output(getMessageString(message));
+            String messageString;
+            try {
+              messageString = getMessageString(messages.get(index));
+            } catch (IllegalArgumentException | MissingHeaderException e) {
+              ui.error("Can't read message: " + e.getMessage());
+              break;
+            }
+            ui.output(messageString);
             break;
           case "DELETE":
             if (curMailbox == null) {
@@ -104,18 +165,16 @@ public class App {
               break;
             }
             if (input.length < 2) {
-              ui.error("Usage: DELETE <message>");
+              ui.error("Usage: DELETE <message>[-<message>][,...]");
               break;
             }
-            messages = curMailbox.getMessages();
-            index = Integer.parseInt(input[1]) - 1;
-            if (index < 0 || index >= messages.size()) {
+            List<Message> selected = selectMessages(curMailbox.getMessages(), input[1]);
+            if (selected == null) {
               ui.error("Invalid message index");
               break;
             }
-            message = messages.get(index);
-            mailboxManager.deleteMessage(curMailbox, message);
-            ui.prompt("Message deleted");
+            int deleted = mailboxManager.deleteMessages(curMailbox, selected);
+            ui.prompt(deleted == 1 ? "Message deleted" : deleted + " messages deleted");
             break;
           case "COMPOSE":
             if (curMailbox == null) {
@@ -234,12 +293,42 @@ public class App {
     }
 
     Message message = new Message(parts);
-    mailboxManager.addMessage(mailbox, message);
+    if (!mailboxManager.addMessage(mailbox, message)) ui.error("Can't store the message");
+  }
+
+  /**
+   * Returns the messages selected by the given ranges of (1-based) indexes.
+   *
+   * <p>The ranges are separated by commas, and every range is either an index N or a pair of
+   * indexes N-M (with N not greater than M), selecting the messages from N to M, both included.
+   *
+   * @param messages the list of messages
+   * @param ranges the ranges of indexes, for example {@code 5-900} or {@code 1,3,7-9}
+   * @return the selected messages, or null if the ranges are not valid
+   */
+  private static List<Message> selectMessages(List<Message> messages, String ranges) {
+    List<Message> selected = new ArrayList<>();
+    for (String range : ranges.split(",", -1)) {
+      String[] bounds = range.split("-", -1);
+      if (bounds.length > 2) return null;
+      int from, to;
+      try {
+        from = Integer.parseInt(bounds[0]);
+        to = bounds.length == 2 ? Integer.parseInt(bounds[1]) : from;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (from < 1 || from > to || to > messages.size()) return null;
+      selected.addAll(messages.subList(from - 1, to));
+    }
+    return selected;
   }
 
   /**
    * Returns the list of messages as a String, formatted as a table.
    *
+   * <p>Only the summaries of the messages are used, so lazy messages are not loaded.
+   *
    * @param messages the list of messages
    * @return the list of messages as a String, formatted as a table
    */
@@ -249,7 +338,7 @@ public class App {
 
     for (Message message : messages) {
       List<String> row = new ArrayList<>(headers);
-      for (Header header : message.getParts().get(0).getHeaders()) {
+      for (Header header : message.getSummary().getHeaders()) {
         if (!header.encodeUIName(false).isBlank())
           row.set(headers.indexOf(header.encodeUIName(false)), header.encodeUIValue(false));
       }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import utils.Store;
+
+/**
+ * Represents the size and the last modified time of a Store.Entry, as recorded by the sidecars of
+ * its box (see {@link MailboxIndex} and {@link MailboxQuarantine}) to tell whether the entry has
+ * been modified since.
+ *
+ * @param size the size of the entry
+ * @param lastModified the last modified time of the entry, in milliseconds from the epoch
+ */
+record EntryStamp(long size, long lastModified) {
+
+  /**
+   * Returns the stamp of the given entry.
+   *
+   * @param entry the entry
+   * @return the stamp of the entry, or null if its attributes cannot be read
+   */
+  static EntryStamp of(Store.Entry entry) {
+    BasicFileAttributes attributes = entry.attributes();
+    if (attributes == null) return null;
+    return new EntryStamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * Returns the records of the given entries whose stamp is the current one of the entry.
+   *
+   * <p>Records of entries that are not among the given ones, or that have been modified, or whose
+   * attributes cannot be read, are left out.
+   *
+   * @param <R> the type of the records
+   * @param logged the records, by name of their entry
+   * @param entries the entries
+   * @param stamp the function returning the stamp of a record
+   * @return the valid records, by name of their entry, in the order of the entries
+   */
+  static <R> Map<String, R> valid(
+      Map<String, R> logged, List<? extends Store.Entry> entries, Function<R, EntryStamp> stamp) {
+    Map<String, R> records = new LinkedHashMap<>();
+    for (Store.Entry entry : entries) {
+      R record = logged.get(entry.toString());
+      if (record != null && stamp.apply(record).equals(of(entry)))
+        records.put(entry.toString(), record);
+    }
+    return records;
+  }
+}
@@ -8,9 +8,12 @@ package mua;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /** Represents a mailbox that stores messages. */
 public final class Mailbox {
@@ -19,7 +22,7 @@ public final class Mailbox {
    * Represents a mailbox that stores messages.
    * An instance a of Mailbox represents a mailbox with the name a.name and the list of messages a.messages.
    * The list of messages is sorted by date in descending order, when returned by getMessages(), using
-   * the date header of the messages.
+   * the date header of the summary of the messages, so that their bodies are not needed.
    * The mailbox can be modified by adding or removing messages.
    *
    * Representation Invariant:
@@ -60,17 +63,15 @@ public final class Mailbox {
    *
    * @return the sorted list of messages
    */
-  public List<Message> getMessages() {
+  public synchronized List<Message> getMessages() {
     List<Message> sortedMessages = new ArrayList<>(messages);
     Collections.sort(
         sortedMessages,
         new Comparator<Message>() {
           @Override
           public int compare(Message m1, Message m2) {
-            ZonedDateTime date1 =
-                (ZonedDateTime) m1.getParts().get(0).getHeader(DateHeader.class).getValue();
-            ZonedDateTime date2 =
-                (ZonedDateTime) m2.getParts().get(0).getHeader(DateHeader.class).getValue();
+            ZonedDateTime date1 = m1.getSummary().getDate();
+            ZonedDateTime date2 = m2.getSummary().getDate();
             return date2.compareTo(date1);
           }
         });
@@ -82,7 +83,7 @@ public final class Mailbox {
    *
    * @param message the message to be added
    */
-  public void addMessage(Message message) {
+  public synchronized void addMessage(Message message) {
     if (message == null) throw new IllegalArgumentException("Message cannot be null");
     messages.add(message);
   }
@@ -92,8 +93,23 @@ public final class Mailbox {
    *
    * @param message the message to be removed
    */
-  public void removeMessage(Message message) {
+  public synchronized void removeMessage(Message message) {
     if (message == null) throw new IllegalArgumentException("Message cannot be null");
     messages.remove(message);
   }
+
+  /**
+   * Removes the given messages from the mailbox, in a single pass over its messages.
+   *
+   * @param messages the messages to be removed
+   * @return the messages that were removed, that is the given ones that were in the mailbox
+   * @throws IllegalArgumentException if the collection of messages is null
+   */
+  public synchronized List<Message> removeMessages(Collection<Message> messages) {
+    if (messages == null) throw new IllegalArgumentException("Messages cannot be null");
+    Set<Message> toRemove = new HashSet<>(messages);
+    List<Message> removed = new ArrayList<>();
+    this.messages.removeIf(message -> toRemove.contains(message) && removed.add(message));
+    return removed;
+  }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import utils.ASCIICharSequence;
+import utils.Store;
+
+/**
+ * Represents the persistent index of the summary headers (From, To, Subject and Date) of the
+ * messages stored in a Store.Box.
+ *
+ * <p>The index is kept in a sidecar of the box, so that the summaries of the messages of a box can
+ * be obtained with a single read, instead of reading and decoding every entry. Every record of the
+ * index also holds the size and the last modified time of its entry, which are compared with the
+ * ones of the entry when the index is opened: records of missing or modified entries are dropped.
+ */
+public final class MailboxIndex {
+  /*
+   * Abstraction Function:
+   * Represents the index of the box box. records maps the name of an entry of the box to the
+   * EntryStamp (size and last modified time) the entry had when the record was added, and to the
+   * summary headers of the message stored in the entry.
+   * The sidecar is a log of additions and removals of records, whose replay gives records: an
+   * addition is a line "+ name size lastModified" followed by the ASCII representations of the
+   * summary headers, one per line, and by an empty line; a removal is a line "- name".
+   *
+   * Representation Invariant:
+   * - box is not null.
+   * - records is not null and does not contain null keys or values.
+   */
+
+  /** The name of the sidecar holding the index */
+  private static final String SIDECAR = "mua-index";
+
+  /** A record of the index */
+  private record Record(EntryStamp stamp, MessageSummary summary) {}
+
+  /** The box whose messages are indexed */
+  private final Store.Box box;
+
+  /** Map of entry names and their corresponding record */
+  private final Map<String, Record> records;
+
+  /**
+   * Constructs a MailboxIndex object for the given box with the given records.
+   *
+   * @param box the box
+   * @param records the records
+   */
+  private MailboxIndex(Store.Box box, Map<String, Record> records) {
+    this.box = box;
+    this.records = records;
+  }
+
+  /**
+   * Opens the index of the given box, validating it against the given entries of the box.
+   *
+   * <p>Records whose entry is not among the given ones, or whose size or last modified time differ
+   * from the ones of the entry, are dropped; if the sidecar is missing or cannot be parsed the
+   * index starts empty. The sidecar is rewritten if any record was dropped.
+   *
+   * @param box the box
+   * @param entries the entries of the box
+   * @return the index of the box
+   * @throws IllegalArgumentException if the box or the entries are null
+   */
+  public static MailboxIndex open(Store.Box box, List<? extends Store.Entry> entries)
+      throws IllegalArgumentException {
+    if (box == null) throw new IllegalArgumentException("The box cannot be null");
+    if (entries == null) throw new IllegalArgumentException("The entries cannot be null");
+
+    Map<String, Record> logged = new LinkedHashMap<>();
+    boolean compact = false;
+    ASCIICharSequence sidecar = box.sidecar(SIDECAR);
+    if (sidecar != null) {
+      try {
+        compact = replay(sidecar, logged);
+      } catch (IllegalArgumentException e) {
+        logged.clear();
+        compact = true;
+      }
+    }
+
+    Map<String, Record> records = EntryStamp.valid(logged, entries, Record::stamp);
+    MailboxIndex index = new MailboxIndex(box, records);
+    if (compact || records.size() != logged.size()) index.rewrite();
+    return index;
+  }
+
+  /**
+   * Replays the given log into the given map of records.
+   *
+   * @param log the log
+   * @param records the map of records
+   * @return whether the log contains removals or replaced records
+   * @throws IllegalArgumentException if the log cannot be parsed
+   */
+  private static boolean replay(ASCIICharSequence log, Map<String, Record> records)
+      throws IllegalArgumentException {
+    boolean compact = false;
+    try (Scanner scanner = new Scanner(log.toString())) {
+      while (scanner.hasNextLine()) {
+        String line = scanner.nextLine();
+        if (line.startsWith("- ")) {
+          records.remove(line.substring(2));
+          compact = true;
+          continue;
+        }
+        if (!line.startsWith("+ ")) throw new IllegalArgumentException("Invalid record: " + line);
+
+        int lastModifiedStart = line.lastIndexOf(' ');
+        int sizeStart = line.lastIndexOf(' ', lastModifiedStart - 1);
+        if (sizeStart < 2) throw new IllegalArgumentException("Invalid record: " + line);
+        String name = line.substring(2, sizeStart);
+        long size, lastModified;
+        try {
+          size = Long.parseLong(line.substring(sizeStart + 1, lastModifiedStart));
+          lastModified = Long.parseLong(line.substring(lastModifiedStart + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid record: " + line);
+        }
+
+        List<Header> summary = new ArrayList<>();
+        while (scanner.hasNextLine() && !(line = scanner.nextLine()).isEmpty()) {
+          String[] header = line.split(": ", 2);
+          if (header.length != 2) throw new IllegalArgumentException("Invalid header: " + line);
+          summary.add(HeaderFactory.createHeader(header[0], header[1]));
+        }
+        if (summary.size() != 4) throw new IllegalArgumentException("Invalid summary: " + name);
+        Record record;
+        try {
+          record = new Record(new EntryStamp(size, lastModified), new MessageSummary(summary));
+        } catch (MissingHeaderException e) {
+          throw new IllegalArgumentException("Invalid summary: " + name);
+        }
+
+        if (records.put(name, record) != null) compact = true;
+      }
+    }
+    return compact;
+  }
+
+  /**
+   * Returns the summary of the message stored in the given entry.
+   *
+   * @param entry the entry
+   * @return the summary of the message, or null if the entry is not indexed
+   */
+  public synchronized MessageSummary getSummary(Store.Entry entry) {
+    Record record = records.get(entry.toString());
+    return record == null ? null : record.summary();
+  }
+
+  /**
+   * Adds (or replaces) the record of the given entry.
+   *
+   * <p>The record is not added if the attributes of the entry cannot be read.
+   *
+   * @param entry the entry
+   * @param summary the summary of the message stored in the entry
+   */
+  public synchronized void put(Store.Entry entry, MessageSummary summary) {
+    EntryStamp stamp = EntryStamp.of(entry);
+    if (stamp == null) return;
+
+    Record record = new Record(stamp, summary);
+    records.put(entry.toString(), record);
+    box.appendSidecar(SIDECAR, encode(entry.toString(), record));
+  }
+
+  /**
+   * Adds (or replaces) the records of the given entries, with a single append to the sidecar, see
+   * {@link #put(Store.Entry, MessageSummary)}.
+   *
+   * @param summaries the summaries of the messages stored in the entries
+   */
+  public synchronized void put(Map<? extends Store.Entry, MessageSummary> summaries) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<? extends Store.Entry, MessageSummary> summary : summaries.entrySet()) {
+      EntryStamp stamp = EntryStamp.of(summary.getKey());
+      if (stamp == null) continue;
+      Record record = new Record(stamp, summary.getValue());
+      records.put(summary.getKey().toString(), record);
+      sb.append(encode(summary.getKey().toString(), record));
+    }
+    if (sb.length() > 0) box.appendSidecar(SIDECAR, ASCIICharSequence.of(sb.toString()));
+  }
+
+  /**
+   * Removes the record of the given entry, if any.
+   *
+   * @param entry the entry
+   */
+  public synchronized void remove(Store.Entry entry) {
+    if (records.remove(entry.toString()) != null)
+      box.appendSidecar(SIDECAR, ASCIICharSequence.of("- " + entry + "\n"));
+  }
+
+  /**
+   * Removes the records of the given entries, if any, with a single append to the sidecar.
+   *
+   * @param entries the entries
+   */
+  public synchronized void remove(Collection<? extends Store.Entry> entries) {
+    StringBuilder sb = new StringBuilder();
+    for (Store.Entry entry : entries)
+      if (records.remove(entry.toString()) != null) sb.append("- ").append(entry).append('\n');
+    if (sb.length() > 0) box.appendSidecar(SIDECAR, ASCIICharSequence.of(sb.toString()));
+  }
+
+  /** Rewrites the sidecar so that it contains only the current records. */
+  private void rewrite() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Record> record : records.entrySet())
+      sb.append(encode(record.getKey(), record.getValue()));
+    box.sidecar(SIDECAR, ASCIICharSequence.of(sb.toString()));
+  }
+
+  /**
+   * Returns the ASCII representation of the addition of a record to the log.
+   *
+   * @param name the name of the entry
+   * @param record the record
+   * @return the ASCII representation of the addition
+   */
+  private static ASCIICharSequence encode(String name, Record record) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("+ ").append(name).append(' ').append(record.stamp().size());
+    sb.append(' ').append(record.stamp().lastModified()).append('\n');
+    for (Header header : record.summary().getHeaders())
+      sb.append(header.encodeToASCII()).append('\n');
+    sb.append('\n');
+    return ASCIICharSequence.of(sb.toString());
+  }
+}
@@ -6,101 +6,868 @@
 
 package mua;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import utils.*;
 
 /**
  * The MailboxManager class represents a manager for mailboxes and keeps synchronized the mailboxe
  * and the storage. It provides methods to add and remove mailboxes.
+ *
+ * <p>The storage can be any implementation of {@link Store}, such as the filesystem-based {@link
+ * Storage} or the heap-only {@link MemoryStore}.
+ *
+ * <p>The methods of this class can be called from different threads, as messages added with
+ * {@link #addMessageAsync(Mailbox, Message)} reach their mailbox from a background thread.
  */
 public final class MailboxManager {
   /* Abstraction Function:
    * Represents a manager for mailboxes. It has the following parts:
-   * - mailboxMap: a map of mailboxes and their corresponding Storage.Box
-   * - messageMap: a map of messages and their corresponding Storage.Box.Entry
+   * - mailboxMap: a map of mailboxes and their corresponding Store.Box
+   * - messageMap: a map of messages and their corresponding Store.Entry
    * The manager can be modified by adding or removing mailboxes and messages.
+   * - indexMap: a map of mailboxes and the MailboxIndex of their Store.Box
+   * - entryMap: the inverse of messageMap
+   * In lazy mode the messages of messageMap are lazy messages, whose parts are read from their
+   * Store.Entry the first time they are needed, and whose summary headers come from the
+   * index of their mailbox, or else from the headers of their Store.Entry alone; in eager mode
+   * indexMap is empty.
+   * If deduplicate is true, the bodies of the attachments of the added messages are stored in the
+   * blob store of storage (if it has one), and their entries are marked as containing references to
+   * them; marked entries are expanded when read, whatever the value of deduplicate.
+   * If lenient is true, the entries that can't be decoded into messages are quarantined in the
+   * MailboxQuarantine of their Store.Box, held by quarantineMap, and have no message; in lazy mode
+   * every message has a summary in the index of its mailbox.
    *
    * Representation Invariant:
    * - mailboxMap is not null and does not contain null keys or values
    * - messageMap is not null and does not contain null keys or values
+   * - indexMap is not null and does not contain null keys or values
+   * - the keys of indexMap are keys of mailboxMap
+   * - entryMap is not null and maps every value of messageMap to its key
+   * - quarantineMap is not null and does not contain null keys or values; it is empty if lenient
+   *   is false
+   * - no key of entryMap is quarantined in the value of quarantineMap for its box
+   * - storage and mode are not null
    */
 
-  /** Map of mailboxes and their corresponding Storage.Box */
-  private final Map<Mailbox, Storage.Box> mailboxMap;
+  /** Map of mailboxes and their corresponding Store.Box */
+  private final Map<Mailbox, Store.Box> mailboxMap;
+
+  /** Map of messages and their corresponding Store.Entry */
+  private final Map<Message, Store.Entry> messageMap;
+
+  /** Map of mailboxes and the index of their corresponding Store.Box */
+  private final Map<Mailbox, MailboxIndex> indexMap;
+
+  /** Map of Store.Entry and their corresponding messages */
+  private final Map<Store.Entry, Message> entryMap;
+
+  /** The storage of the mailboxes */
+  private final Store storage;
+
+  /** The mode in which the messages are loaded */
+  private final LoadMode mode;
 
-  /** Map of messages and their corresponding Storage.Box.Entry */
-  private final Map<Message, Storage.Box.Entry> messageMap;
+  /** Whether the attachments of the added messages are stored in the blob store */
+  private final boolean deduplicate;
+
+  /** Whether the entries that can't be decoded are quarantined instead of failing the load */
+  private final boolean lenient;
+
+  /** Map of Store.Box and their quarantine, empty if not lenient */
+  private final Map<Store.Box, MailboxQuarantine> quarantineMap;
+
+  /**
+   * Number of entries in the storage above which {@link #MailboxManager(Store)} loads the
+   * messages lazily.
+   */
+  public static final int LAZY_THRESHOLD = 10_000;
+
+  /** Number of entries decoded by a single task when loading the messages in parallel. */
+  private static final int LOAD_CHUNK_SIZE = 32;
+
+  /** The ways in which the messages of the storage can be loaded. */
+  public enum LoadMode {
+    /** Every message is read and decoded when the manager is constructed. */
+    EAGER,
+    /**
+     * Only boxes and entries are enumerated; a message is read when first needed, while its
+     * summary headers are read from the {@link MailboxIndex} of its box, if present, or else by
+     * decoding just the headers of its entry.
+     */
+    LAZY
+  }
 
   /**
    * Constructs a new MailboxManager object with the given storage.
    *
+   * <p>The messages are loaded lazily if the storage contains more than {@link #LAZY_THRESHOLD}
+   * entries, eagerly otherwise.
+   *
    * @param storage the storage element of the root directory of the mailboxes.
    * @throws IllegalArgumentException if the storage is null
    */
-  public MailboxManager(Storage storage) {
+  public MailboxManager(Store storage) {
+    this(storage, null);
+  }
+
+  /**
+   * Constructs a new MailboxManager object with the given storage, loading the messages as
+   * specified by the given mode.
+   *
+   * <p>Eagerly loaded messages are decoded using as many threads as available processors.
+   *
+   * @param storage the storage element of the root directory of the mailboxes.
+   * @param mode the load mode, or null to choose it according to {@link #LAZY_THRESHOLD}.
+   * @throws IllegalArgumentException if the storage is null
+   */
+  public MailboxManager(Store storage, LoadMode mode) {
+    this(storage, mode, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs a new MailboxManager object with the given storage, loading the messages as
+   * specified by the given mode.
+   *
+   * <p>Eagerly loaded messages are read and decoded by parallelism threads; each mailbox keeps its
+   * messages in the order of {@link Store.Box#entries()} regardless of the parallelism. A
+   * parallelism of 1 loads the messages sequentially in the calling thread. The parallelism is not
+   * used in lazy mode.
+   *
+   * @param storage the storage element of the root directory of the mailboxes.
+   * @param mode the load mode, or null to choose it according to {@link #LAZY_THRESHOLD}.
+   * @param parallelism the number of threads used to load the messages.
+   * @throws IllegalArgumentException if the storage is null
+   * @throws IllegalArgumentException if the parallelism is not positive
+   */
+  public MailboxManager(Store storage, LoadMode mode, int parallelism) {
+    this(storage, mode, parallelism, false);
+  }
+
+  /**
+   * Constructs a new MailboxManager object with the given storage, loading the messages as
+   * specified by the given mode and parallelism, see {@link #MailboxManager(Store, LoadMode,
+   * int)}.
+   *
+   * <p>If deduplicate is true, the body of every part of an added message having a
+   * Content-Disposition header (that is, of every attachment) is stored once in the {@link
+   * Store#blobs() blob store} of the storage, if it has one, and the entry of the message refers
+   * to it; identical attachments of different messages are thus stored, and read, once. Messages
+   * having a body with lines starting with {@code @blob } are stored as they are. Entries referring
+   * to the blob store are read correctly regardless of deduplicate.
+   *
+   * @param storage the storage element of the root directory of the mailboxes.
+   * @param mode the load mode, or null to choose it according to {@link #LAZY_THRESHOLD}.
+   * @param parallelism the number of threads used to load the messages.
+   * @param deduplicate whether the attachments of the added messages are stored in the blob store.
+   * @throws IllegalArgumentException if the storage is null
+   * @throws IllegalArgumentException if the parallelism is not positive
+   */
+  public MailboxManager(Store storage, LoadMode mode, int parallelism, boolean deduplicate) {
+    this(storage, mode, parallelism, deduplicate, false);
+  }
+
+  /**
+   * Constructs a new MailboxManager object with the given storage, loading the messages as
+   * specified by the given mode and parallelism and storing the attachments as specified by
+   * deduplicate, see {@link #MailboxManager(Store, LoadMode, int, boolean)}.
+   *
+   * <p>If lenient is true, an entry that can't be decoded into a message doesn't fail the load: it
+   * is quarantined in the {@link MailboxQuarantine} of its box, along with the error and the offset
+   * where it was found, and has no message; a box whose entries are all quarantined has no
+   * mailbox. Entries found in the quarantine are skipped without being read, as long as they are
+   * not modified. In lazy mode the headers of the entries that are not indexed are decoded while
+   * loading, so that the entries whose summary can't be decoded are quarantined and have no
+   * message; the other parts of an entry are decoded only when needed, so an entry whose parts
+   * can't be decoded is quarantined (and skipped by the following loads) when first needed, its
+   * message still throwing the error.
+   *
+   * @param storage the storage element of the root directory of the mailboxes.
+   * @param mode the load mode, or null to choose it according to {@link #LAZY_THRESHOLD}.
+   * @param parallelism the number of threads used to load the messages.
+   * @param deduplicate whether the attachments of the added messages are stored in the blob store.
+   * @param lenient whether the entries that can't be decoded are quarantined.
+   * @throws IllegalArgumentException if the storage is null
+   * @throws IllegalArgumentException if the parallelism is not positive
+   */
+  public MailboxManager(
+      Store storage, LoadMode mode, int parallelism, boolean deduplicate, boolean lenient) {
     mailboxMap = new LinkedHashMap<>();
     messageMap = new LinkedHashMap<>();
+    indexMap = new LinkedHashMap<>();
+    entryMap = new HashMap<>();
+    quarantineMap = Collections.synchronizedMap(new LinkedHashMap<>());
 
     if (storage == null) throw new IllegalArgumentException("The storage cannot be null");
+    if (parallelism < 1) throw new IllegalArgumentException("The parallelism must be positive");
+    this.storage = storage;
+    this.deduplicate = deduplicate;
+    this.lenient = lenient;
+
+    Map<Store.Box, List<Store.Entry>> boxEntries = new LinkedHashMap<>();
+    int entriesCount = 0;
+    for (Store.Box storageBox : storage.boxes()) {
+      List<Store.Entry> entries = new ArrayList<>(storageBox.entries());
+      if (lenient) {
+        MailboxQuarantine quarantine = MailboxQuarantine.open(storageBox, entries);
+        quarantineMap.put(storageBox, quarantine);
+        entries.removeIf(quarantine::contains);
+      }
+      boxEntries.put(storageBox, entries);
+      entriesCount += entries.size();
+    }
+
+    if (mode == null) mode = entriesCount > LAZY_THRESHOLD ? LoadMode.LAZY : LoadMode.EAGER;
+    this.mode = mode;
+
+    Iterator<Message> loaded = null;
+    if (mode == LoadMode.EAGER) {
+      List<Store.Entry> allEntries = new ArrayList<>(entriesCount);
+      for (List<Store.Entry> entries : boxEntries.values()) allEntries.addAll(entries);
+      loaded = loadMessages(allEntries, parallelism).iterator();
+    }
+
+    for (Map.Entry<Store.Box, List<Store.Entry>> boxEntry : boxEntries.entrySet()) {
+      MailboxIndex index = null;
+      if (mode == LoadMode.LAZY) {
+        index = MailboxIndex.open(boxEntry.getKey(), boxEntry.getValue());
+        if (lenient) indexSummaries(index, boxEntry.getValue());
+      }
 
-    for (Storage.Box storageBox : storage.boxes()) {
       List<Message> messages = new ArrayList<>();
-      for (Storage.Box.Entry entry : storageBox.entries()) {
-        ASCIICharSequence sequence = entry.content();
-        List<Fragment> fragments = EntryEncoding.decode(sequence);
-        Message message = new Message(Message.createMessageParts(fragments));
+      for (Store.Entry entry : boxEntry.getValue()) {
+        Message message;
+        if (mode == LoadMode.LAZY) message = lazyMessage(index, entry);
+        else message = loaded.next();
+        if (message == null) continue;
         messages.add(message);
         messageMap.put(message, entry);
+        entryMap.put(entry, message);
+      }
+      if (messages.isEmpty() && lenient) continue;
+      Mailbox mailbox = new Mailbox(messages, boxEntry.getKey().toString());
+      mailboxMap.put(mailbox, boxEntry.getKey());
+      if (index != null) indexMap.put(mailbox, index);
+    }
+  }
+
+  /**
+   * Reads and decodes the messages stored in the given entries, using parallelism threads.
+   *
+   * <p>The entries are split in chunks of {@link #LOAD_CHUNK_SIZE} that are decoded concurrently;
+   * the chunks are then joined in order, so that the returned list follows the order of the
+   * entries.
+   *
+   * @param entries the entries of the messages
+   * @param parallelism the number of threads used, 1 to decode the entries in the calling thread
+   * @return the list of messages, in the same order as the entries; in lenient mode, the messages
+   *     of the quarantined entries are null
+   */
+  private List<Message> loadMessages(List<Store.Entry> entries, int parallelism) {
+    List<Message> messages = new ArrayList<>(entries.size());
+    if (parallelism == 1 || entries.size() <= LOAD_CHUNK_SIZE) {
+      for (Store.Entry entry : entries) {
+        Message message;
+        try {
+          message = quarantining(entry, () -> new Message(readMessageParts(entry)));
+        } catch (IllegalArgumentException | MissingHeaderException e) {
+          if (!lenient) throw e;
+          message = null;
+        }
+        messages.add(message);
+      }
+      return messages;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<List<Message>>> chunks = new ArrayList<>();
+      for (int from = 0; from < entries.size(); from += LOAD_CHUNK_SIZE) {
+        List<Store.Entry> chunk =
+            entries.subList(from, Math.min(from + LOAD_CHUNK_SIZE, entries.size()));
+        chunks.add(executor.submit(() -> loadMessages(chunk, 1)));
+      }
+      for (Future<List<Message>> chunk : chunks) messages.addAll(chunk.get());
+      return messages;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while loading the messages", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error) throw (Error) e.getCause();
+      throw new IllegalStateException("Failed to load the messages", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Constructs a lazy message for the given entry, with the summary found in the given index. If
+   * the entry is not indexed, the summary is decoded from the headers of the entry alone when first
+   * needed, and added to the index.
+   *
+   * @param index the index of the box of the entry
+   * @param entry the entry of the message
+   * @return the lazy message
+   */
+  private Message lazyMessage(MailboxIndex index, Store.Entry entry) {
+    MessageSummary summary = index.getSummary(entry);
+    return Message.lazy(
+        () -> {
+          if (summary != null) return summary;
+          MessageSummary read = quarantining(entry, () -> readMessageSummary(entry));
+          index.put(entry, read);
+          return read;
+        },
+        () -> {
+          List<MessagePart> parts = quarantining(entry, () -> readMessageParts(entry));
+          if (index.getSummary(entry) == null && !parts.isEmpty())
+            index.put(entry, new MessageSummary(parts.get(0).getHeaders()));
+          return parts;
+        });
+  }
+
+  /**
+   * Decodes the summaries of the given entries that are not indexed yet, adding them to the given
+   * index; the entries whose summary can't be decoded are quarantined, and removed from the list.
+   *
+   * <p>In lenient lazy mode every message thus has a summary, and listing or sorting the messages
+   * of a mailbox can't fail.
+   *
+   * @param index the index of the box of the entries
+   * @param entries the entries of the box
+   */
+  private void indexSummaries(MailboxIndex index, List<Store.Entry> entries) {
+    Map<Store.Entry, MessageSummary> summaries = new LinkedHashMap<>();
+    entries.removeIf(
+        entry -> {
+          if (index.getSummary(entry) != null) return false;
+          try {
+            summaries.put(entry, quarantining(entry, () -> readMessageSummary(entry)));
+            return false;
+          } catch (IllegalArgumentException | MissingHeaderException e) {
+            return true;
+          }
+        });
+    index.put(summaries);
+  }
+
+  /**
+   * Returns the result of the given decoding of the given entry; in lenient mode, if the decoding
+   * fails the entry is quarantined, along with the offset of the error if known (or else 0), before
+   * the error is rethrown.
+   *
+   * @param <T> the type of the result
+   * @param entry the entry being decoded
+   * @param decoding the decoding of the entry
+   * @return the result of the decoding
+   * @throws IllegalArgumentException if the entry can't be decoded
+   * @throws MissingHeaderException if the entry lacks the required headers
+   */
+  private <T> T quarantining(Store.Entry entry, Supplier<T> decoding)
+      throws IllegalArgumentException, MissingHeaderException {
+    try {
+      return decoding.get();
+    } catch (IllegalArgumentException | MissingHeaderException e) {
+      if (lenient) {
+        long offset = e instanceof DecodeException ? ((DecodeException) e).offset() : 0;
+        String error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        quarantineMap
+            .computeIfAbsent(entry.box(), box -> MailboxQuarantine.open(box, box.entries()))
+            .put(entry, offset, error);
       }
-      Mailbox mailbox = new Mailbox(messages, storageBox.toString());
-      mailboxMap.put(mailbox, storageBox);
+      throw e;
     }
   }
 
+  /**
+   * Reads and decodes the summary of the message stored in the given entry, decoding just the
+   * top-level headers of the entry.
+   *
+   * @param entry the entry of the message
+   * @return the summary of the message
+   */
+  private MessageSummary readMessageSummary(Store.Entry entry) {
+    ByteBuffer bytes = entry.bytes();
+    if (bytes == null) throw new IllegalArgumentException("Can't read entry: " + entry);
+    return MessageSummary.fromRawHeaders(EntryEncoding.decodeHeaders(bytes));
+  }
+
+  /**
+   * Reads and decodes the parts of the message stored in the given entry, expanding the references
+   * to the blob store it contains.
+   *
+   * @param entry the entry of the message
+   * @return the list of parts of the message
+   * @throws DecodeException if the entry, or one of its parts, can't be decoded; the offset is the
+   *     one of the error or of the start of the part
+   */
+  private List<MessagePart> readMessageParts(Store.Entry entry) throws DecodeException {
+    ByteBuffer bytes = entry.bytes();
+    if (bytes == null) throw new IllegalArgumentException("Can't read entry: " + entry);
+    List<Fragment> fragments;
+    if (storage.blobs() != null && BlobStore.isMarked(bytes))
+      fragments = EntryEncoding.decode(storage.blobs().expand(ASCIICharSequence.of(bytes)));
+    else fragments = EntryEncoding.decode(bytes);
+    if (fragments.isEmpty())
+      throw new DecodeException("The message must contain at least one part", 0);
+
+    List<MessagePart> parts = new ArrayList<>();
+    for (Fragment fragment : fragments)
+      try {
+        parts.add(MessagePart.fromFragment(fragment));
+      } catch (IllegalArgumentException e) {
+        throw new DecodeException(e.getMessage(), fragment.offset());
+      }
+    return parts;
+  }
+
   /**
    * Deletes a message from the mailbox. The message is also removed from the storage.
    *
    * @param mailbox the mailbox from which the message is to be deleted
    * @param message the message to be deleted
    */
-  public void deleteMessage(Mailbox mailbox, Message message) {
-    Storage.Box.Entry entry = messageMap.get(message);
+  public synchronized void deleteMessage(Mailbox mailbox, Message message) {
+    Store.Entry entry = messageMap.get(message);
     messageMap.remove(message);
+    entryMap.remove(entry);
     mailbox.removeMessage(message);
-    entry.delete();
+    deleteEntry(entry);
+    MailboxIndex index = indexMap.get(mailbox);
+    if (index != null) index.remove(entry);
+  }
+
+  /**
+   * Deletes the given messages from the mailbox. The messages are also removed from the storage.
+   *
+   * <p>The messages are removed from the mailbox in a single pass, their entries are deleted with
+   * a single {@link Store.Box#deleteEntries} call and the index of the mailbox, if any, is updated
+   * once. Messages that are not in the mailbox are ignored.
+   *
+   * @param mailbox the mailbox from which the messages are to be deleted
+   * @param messages the messages to be deleted
+   * @return the number of messages deleted from the mailbox
+   * @throws IllegalArgumentException if the mailbox is not managed by this manager
+   * @throws IllegalArgumentException if the collection of messages is null
+   */
+  public synchronized int deleteMessages(Mailbox mailbox, Collection<Message> messages)
+      throws IllegalArgumentException {
+    Store.Box box = mailboxMap.get(mailbox);
+    if (box == null) throw new IllegalArgumentException("Unknown mailbox: " + mailbox);
+    if (messages == null) throw new IllegalArgumentException("The messages cannot be null");
+
+    List<Message> deleted = mailbox.removeMessages(messages);
+    List<Store.Entry> entries = new ArrayList<>();
+    for (Message message : deleted) {
+      Store.Entry entry = messageMap.remove(message);
+      if (entry == null) continue;
+      entryMap.remove(entry);
+      entries.add(entry);
+    }
+    deleteEntries(box, entries);
+    MailboxIndex index = indexMap.get(mailbox);
+    if (index != null) index.remove(entries);
+    return deleted.size();
+  }
+
+  /**
+   * Deletes the messages of the mailbox satisfying the given predicate, see {@link
+   * #deleteMessages(Mailbox, Collection)}.
+   *
+   * @param mailbox the mailbox from which the messages are to be deleted
+   * @param predicate the predicate selecting the messages to be deleted
+   * @return the number of messages deleted from the mailbox
+   * @throws IllegalArgumentException if the mailbox is not managed by this manager
+   * @throws IllegalArgumentException if the predicate is null
+   */
+  public synchronized int deleteMessages(Mailbox mailbox, Predicate<Message> predicate)
+      throws IllegalArgumentException {
+    if (predicate == null) throw new IllegalArgumentException("The predicate cannot be null");
+    List<Message> messages = new ArrayList<>();
+    for (Message message : mailbox.getMessages())
+      if (predicate.test(message)) messages.add(message);
+    return deleteMessages(mailbox, messages);
+  }
+
+  /**
+   * Deletes the messages of the mailbox from index from (inclusive) to index to (exclusive), in
+   * the order of {@link Mailbox#getMessages()}, see {@link #deleteMessages(Mailbox, Collection)}.
+   *
+   * @param mailbox the mailbox from which the messages are to be deleted
+   * @param from the index of the first message to be deleted
+   * @param to the index after the last message to be deleted
+   * @return the number of messages deleted from the mailbox
+   * @throws IllegalArgumentException if the mailbox is not managed by this manager
+   * @throws IllegalArgumentException if the indexes are out of range, or from is greater than to
+   */
+  public synchronized int deleteMessages(Mailbox mailbox, int from, int to)
+      throws IllegalArgumentException {
+    List<Message> messages = mailbox.getMessages();
+    if (from < 0 || to > messages.size() || from > to)
+      throw new IllegalArgumentException("Invalid range: " + from + "-" + to);
+    return deleteMessages(mailbox, messages.subList(from, to));
+  }
+
+  /**
+   * Deletes the given entries of the given box from the storage, dropping the references to the
+   * blob store they contain; the entries are not read if no blob was ever stored.
+   *
+   * @param box the box of the entries
+   * @param entries the entries to be deleted
+   */
+  private void deleteEntries(Store.Box box, List<Store.Entry> entries) {
+    if (entries.isEmpty()) return;
+    BlobStore blobs = storage.blobs();
+    Map<Store.Entry, List<String>> keys = new HashMap<>();
+    if (blobs != null && !blobs.isEmpty())
+      for (Store.Entry entry : entries) keys.put(entry, blobKeys(entry));
+    for (Store.Entry entry : box.deleteEntries(entries))
+      for (String key : keys.getOrDefault(entry, List.of())) blobs.release(key);
+  }
+
+  /**
+   * Deletes the given entry from the storage, dropping the references to the blob store it
+   * contains; the entry is not read if no blob was ever stored.
+   *
+   * @param entry the entry to be deleted
+   */
+  private void deleteEntry(Store.Entry entry) {
+    BlobStore blobs = storage.blobs();
+    if (blobs == null || blobs.isEmpty()) {
+      entry.delete();
+      return;
+    }
+    List<String> keys = blobKeys(entry);
+    if (!entry.delete()) return;
+    for (String key : keys) blobs.release(key);
+  }
+
+  /**
+   * Returns the keys of the blobs the given entry refers to, as listed by its marker.
+   *
+   * @param entry the entry
+   * @return the keys, empty if the entry is not marked or can't be read
+   */
+  private static List<String> blobKeys(Store.Entry entry) {
+    ByteBuffer bytes = entry.bytes();
+    return bytes == null ? List.of() : BlobStore.keys(bytes);
   }
 
   /**
    * Adds a message to the mailbox.
    *
+   * <p>If the entry of the message can't be created (for example because the storage is
+   * read-only, or some I/O error occurs) the message is not added.
+   *
+   * @param mailbox the mailbox to which the message is to be added
+   * @param message the message to be added
+   * @return whether the message was stored and added to the mailbox
+   */
+  public synchronized boolean addMessage(Mailbox mailbox, Message message) {
+    Store.Box storageBox = mailboxMap.get(mailbox);
+    Encoded encoded = encode(message);
+    Store.Entry entry = storageBox.entry(encoded.content());
+    if (entry == null) {
+      releaseBlobs(encoded.keys());
+      return false;
+    }
+    putMessage(mailbox, message, entry);
+    return true;
+  }
+
+  /**
+   * Adds a message to the mailbox asynchronously.
+   *
+   * <p>The message is written to the storage in background, together with the other messages
+   * being added in the meantime, and is added to the mailbox once it is durably stored; the caller
+   * can thus add many messages without waiting for each one of them.
+   *
+   * @param mailbox the mailbox to which the message is to be added
+   * @param message the message to be added
+   * @return a future completed with the message once it is stored and added to the mailbox, or
+   *     completed exceptionally if it could not be stored
+   */
+  public CompletableFuture<Message> addMessageAsync(Mailbox mailbox, Message message) {
+    Store.Box storageBox;
+    synchronized (this) {
+      storageBox = mailboxMap.get(mailbox);
+    }
+    Encoded encoded = encode(message);
+    return storageBox
+        .entryAsync(encoded.content())
+        .whenComplete(
+            (entry, e) -> {
+              if (e != null) releaseBlobs(encoded.keys());
+            })
+        .thenApply(
+            entry -> {
+              putMessage(mailbox, message, entry);
+              return message;
+            });
+  }
+
+  /**
+   * Represents the content of the entry of a message, together with the keys of the blobs it
+   * refers to, whose references have been counted by the blob store.
+   *
+   * @param content the content of the entry
+   * @param keys the keys of the blobs the content refers to
+   */
+  private record Encoded(ASCIICharSequence content, List<String> keys) {}
+
+  /**
+   * Returns the ASCII representation of the given message to be stored in an entry: the one of the
+   * message itself if deduplicate is false, otherwise the one where the body of every attachment is
+   * replaced by a reference to the blob store (or left unchanged, if it can't be stored), marked as
+   * such.
+   *
+   * <p>Messages with a body containing a line that would be taken for a reference are not
+   * deduplicated, so that every such line of a marked entry is a reference. If the entry can't be
+   * created, the references to the blobs must be released, see {@link #releaseBlobs(List)}.
+   *
+   * @param message the message
+   * @return the content of the entry of the message, with the keys of the blobs it refers to
+   */
+  private Encoded encode(Message message) {
+    BlobStore blobs = storage.blobs();
+    if (!deduplicate || blobs == null) return new Encoded(message.encodeToASCII(), List.of());
+    for (MessagePart part : message.getParts())
+      if (BlobStore.mayContainReferences(part.getBody()))
+        return new Encoded(message.encodeToASCII(), List.of());
+    List<String> keys = new ArrayList<>();
+    ASCIICharSequence content =
+        message.encodeToASCII(
+            part -> {
+              if (part.getHeader(ContentDispositionHeader.class) == null) return part.getBody();
+              String key = blobs.store(part.getBody());
+              if (key == null) return part.getBody();
+              keys.add(key);
+              return BlobStore.reference(key);
+            });
+    return new Encoded(BlobStore.mark(content, keys), keys);
+  }
+
+  /**
+   * Releases the references to the given blobs, counted when the content of an entry that could
+   * not be created was encoded.
+   *
+   * @param keys the keys of the blobs
+   */
+  private void releaseBlobs(List<String> keys) {
+    for (String key : keys) storage.blobs().release(key);
+  }
+
+  /**
+   * Adds a message, stored in the given entry, to the mailbox.
+   *
    * @param mailbox the mailbox to which the message is to be added
    * @param message the message to be added
+   * @param entry the entry of the message, not null
    */
-  public void addMessage(Mailbox mailbox, Message message) {
-    Storage.Box storageBox = mailboxMap.get(mailbox);
-    Storage.Box.Entry entry = storageBox.entry(message.encodeToASCII());
+  private synchronized void putMessage(Mailbox mailbox, Message message, Store.Entry entry) {
+    Message watched = entryMap.put(entry, message);
+    if (watched != null) {
+      messageMap.remove(watched);
+      mailbox.removeMessage(watched);
+    }
     messageMap.put(message, entry);
     mailbox.addMessage(message);
+    MailboxIndex index = indexMap.get(mailbox);
+    if (index != null) index.put(entry, message.getSummary());
+  }
+
+  /**
+   * Starts applying to the mailboxes the changes made to the storage by other processes.
+   *
+   * <p>Only the entries that are created or deleted are read, or removed: the messages of created
+   * entries are added to the mailbox of their box (which is created, if needed, as soon as the box
+   * contains a message), the messages of deleted entries are removed from their mailbox, and the
+   * mailbox of a deleted box is removed. Changes made through this manager are not applied twice.
+   * Entries that can't be decoded are ignored.
+   *
+   * @return a handle to stop applying the changes
+   * @throws IOException if the storage can't be watched
+   * @throws UnsupportedOperationException if the storage can't be watched, given its layout
+   */
+  public Closeable watch() throws IOException, UnsupportedOperationException {
+    return storage.watch(new StorageListener());
+  }
+
+  /** Applies the changes notified by the storage to the mailboxes. */
+  private final class StorageListener implements Store.Listener {
+    @Override
+    public void entryCreated(Store.Entry entry) {
+      synchronized (MailboxManager.this) {
+        if (entryMap.containsKey(entry)) return;
+        MailboxQuarantine quarantine = quarantineMap.get(entry.box());
+        if (quarantine != null && quarantine.contains(entry)) return;
+        Mailbox mailbox = findMailbox(entry.box());
+        MailboxIndex index = mailbox == null ? null : indexMap.get(mailbox);
+        if (mode == LoadMode.LAZY && index == null)
+          index = MailboxIndex.open(entry.box(), entry.box().entries());
+
+        Message message;
+        try {
+          if (mode == LoadMode.LAZY) message = lazyMessage(index, entry);
+          else message = quarantining(entry, () -> new Message(readMessageParts(entry)));
+        } catch (RuntimeException e) {
+          return;
+        }
+
+        if (mailbox == null) {
+          List<Message> messages = new ArrayList<>();
+          messages.add(message);
+          mailbox = new Mailbox(messages, entry.box().toString());
+          mailboxMap.put(mailbox, entry.box());
+          List<Map.Entry<Mailbox, Store.Box>> sorted = new ArrayList<>(mailboxMap.entrySet());
+          sorted.sort((e1, e2) -> e1.getKey().name.compareTo(e2.getKey().name));
+          mailboxMap.clear();
+          for (Map.Entry<Mailbox, Store.Box> sortedEntry : sorted)
+            mailboxMap.put(sortedEntry.getKey(), sortedEntry.getValue());
+          if (index != null) indexMap.put(mailbox, index);
+        } else mailbox.addMessage(message);
+        messageMap.put(message, entry);
+        entryMap.put(entry, message);
+      }
+    }
+
+    @Override
+    public void entryDeleted(Store.Entry entry) {
+      synchronized (MailboxManager.this) {
+        Message message = entryMap.remove(entry);
+        if (message == null) return;
+        messageMap.remove(message);
+        Mailbox mailbox = findMailbox(entry.box());
+        if (mailbox == null) return;
+        mailbox.removeMessage(message);
+        MailboxIndex index = indexMap.get(mailbox);
+        if (index != null) index.remove(entry);
+      }
+    }
+
+    @Override
+    public void boxCreated(Store.Box box) {
+      // the mailbox is created along with its first message
+    }
+
+    @Override
+    public void boxDeleted(Store.Box box) {
+      synchronized (MailboxManager.this) {
+        Mailbox mailbox = findMailbox(box);
+        if (mailbox == null) return;
+        mailboxMap.remove(mailbox);
+        indexMap.remove(mailbox);
+        Iterator<Map.Entry<Store.Entry, Message>> it = entryMap.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<Store.Entry, Message> entry = it.next();
+          if (!entry.getKey().box().equals(box)) continue;
+          messageMap.remove(entry.getValue());
+          it.remove();
+        }
+      }
+    }
+
+    @Override
+    public void overflow(Store.Box box) {
+      synchronized (MailboxManager.this) {
+        Set<Store.Entry> entries = new HashSet<>(box.entries());
+        for (Store.Entry known : new ArrayList<>(entryMap.keySet()))
+          if (known.box().equals(box) && !entries.contains(known)) entryDeleted(known);
+        for (Store.Entry entry : entries) entryCreated(entry);
+      }
+    }
+  }
+
+  /**
+   * Returns the mailbox corresponding to the given Store.Box.
+   *
+   * @param box the box
+   * @return the mailbox, or null if the box has no mailbox
+   */
+  private Mailbox findMailbox(Store.Box box) {
+    for (Map.Entry<Mailbox, Store.Box> mailbox : mailboxMap.entrySet())
+      if (mailbox.getValue().equals(box)) return mailbox.getKey();
+    return null;
+  }
+
+  /**
+   * Returns the newest messages of the given mailbox, newest first.
+   *
+   * <p>The newest messages are the ones stored last, as given by {@link Store.Box#newest(int)}:
+   * neither their content nor their Date header are read, the entries not created by this version
+   * are put in order by their last modified time. Entries not (yet) known to this manager
+   * are skipped, so fewer than n messages may be returned.
+   *
+   * @param mailbox the mailbox
+   * @param n the maximum number of messages to return
+   * @return the list of (at most) n newest messages of the mailbox
+   * @throws IllegalArgumentException if the mailbox is not managed by this manager
+   * @throws IllegalArgumentException if n is negative
+   */
+  public synchronized List<Message> getNewestMessages(Mailbox mailbox, int n)
+      throws IllegalArgumentException {
+    Store.Box box = mailboxMap.get(mailbox);
+    if (box == null) throw new IllegalArgumentException("Unknown mailbox: " + mailbox);
+    if (n < 0) throw new IllegalArgumentException("n cannot be negative");
+
+    List<Message> newest = new ArrayList<>();
+    for (Store.Entry entry : box.newest(n)) {
+      Message message = entryMap.get(entry);
+      if (message != null) newest.add(message);
+    }
+    return newest;
   }
 
   /**
-   * Returns a copy of the Map of mailboxes and their corresponding Storage.Box.
+   * Returns a copy of the Map of mailboxes and their corresponding Store.Box.
    *
-   * @return the Map of mailboxes and their corresponding Storage.Box
+   * @return the Map of mailboxes and their corresponding Store.Box
    */
-  public Map<Mailbox, Storage.Box> getMailboxMap() {
+  public synchronized Map<Mailbox, Store.Box> getMailboxMap() {
     return new LinkedHashMap<>(mailboxMap);
   }
 
   /**
-   * Returns a copy of the Map of messages and their corresponding Storage.Box.Entry.
+   * Returns the entries quarantined because they can't be decoded, box by box; the list is empty if
+   * the manager is not lenient.
+   *
+   * @return the list of the quarantined entries
+   */
+  public List<QuarantinedEntry> getQuarantine() {
+    List<QuarantinedEntry> entries = new ArrayList<>();
+    synchronized (quarantineMap) {
+      for (MailboxQuarantine quarantine : quarantineMap.values())
+        entries.addAll(quarantine.getEntries());
+    }
+    return entries;
+  }
+
+  /**
+   * Returns a copy of the Map of messages and their corresponding Store.Entry.
    *
-   * @return the Map of messages and their corresponding Storage.Box.Entry
+   * @return the Map of messages and their corresponding Store.Entry
    */
-  public Map<Message, Storage.Box.Entry> getMessageMap() {
+  public synchronized Map<Message, Store.Entry> getMessageMap() {
     return new LinkedHashMap<>(messageMap);
   }
 }
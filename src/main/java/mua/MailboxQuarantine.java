@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import utils.ASCIICharSequence;
+import utils.Store;
+
+/**
+ * Represents the persistent quarantine of the entries of a Store.Box that could not be loaded as
+ * messages.
+ *
+ * <p>The quarantine is kept in a sidecar of the box, so that entries already found to be invalid
+ * are skipped without reading them again. As for {@link MailboxIndex}, every record holds the size
+ * and the last modified time of its entry: records of missing or modified entries are dropped when
+ * the quarantine is opened, so that fixed entries are loaded again.
+ */
+public final class MailboxQuarantine {
+  /*
+   * Abstraction Function:
+   * Represents the quarantine of the box box. records maps the name of every quarantined entry of
+   * the box to the EntryStamp the entry had when it was quarantined (null if its attributes could
+   * not be read, in which case the record is not in the sidecar), and to the quarantined entry
+   * itself.
+   * The sidecar contains, for every record, a line "name size lastModified offset" followed by a
+   * line with the error, which is made of printable ASCII characters only.
+   *
+   * Representation Invariant:
+   * - box is not null.
+   * - records is not null and does not contain null keys or values.
+   */
+
+  /** The name of the sidecar holding the quarantine */
+  private static final String SIDECAR = "mua-quarantine";
+
+  /** A record of the quarantine */
+  private record Record(EntryStamp stamp, QuarantinedEntry entry) {}
+
+  /** The box whose entries are quarantined */
+  private final Store.Box box;
+
+  /** Map of entry names and their corresponding record */
+  private final Map<String, Record> records;
+
+  /**
+   * Constructs a MailboxQuarantine object for the given box with the given records.
+   *
+   * @param box the box
+   * @param records the records
+   */
+  private MailboxQuarantine(Store.Box box, Map<String, Record> records) {
+    this.box = box;
+    this.records = records;
+  }
+
+  /**
+   * Opens the quarantine of the given box, validating it against the given entries of the box.
+   *
+   * <p>Records whose entry is not among the given ones, or whose size or last modified time differ
+   * from the ones of the entry, are dropped; if the sidecar cannot be parsed the quarantine starts
+   * empty. The sidecar is rewritten if any record was dropped.
+   *
+   * @param box the box
+   * @param entries the entries of the box
+   * @return the quarantine of the box
+   * @throws IllegalArgumentException if the box or the entries are null
+   */
+  public static MailboxQuarantine open(Store.Box box, List<? extends Store.Entry> entries)
+      throws IllegalArgumentException {
+    if (box == null) throw new IllegalArgumentException("The box cannot be null");
+    if (entries == null) throw new IllegalArgumentException("The entries cannot be null");
+
+    Map<String, String[]> logged = new LinkedHashMap<>();
+    boolean invalid = false;
+    ASCIICharSequence sidecar = box.sidecar(SIDECAR);
+    if (sidecar != null)
+      try (Scanner scanner = new Scanner(sidecar.toString())) {
+        while (scanner.hasNextLine()) {
+          String line = scanner.nextLine();
+          int offsetStart = line.lastIndexOf(' ');
+          int lastModifiedStart = line.lastIndexOf(' ', offsetStart - 1);
+          int sizeStart = line.lastIndexOf(' ', lastModifiedStart - 1);
+          if (sizeStart < 1 || !scanner.hasNextLine()) {
+            logged.clear();
+            invalid = true;
+            break;
+          }
+          logged.put(
+              line.substring(0, sizeStart),
+              new String[] {
+                line.substring(sizeStart + 1, lastModifiedStart),
+                line.substring(lastModifiedStart + 1, offsetStart),
+                line.substring(offsetStart + 1),
+                scanner.nextLine()
+              });
+        }
+      }
+
+    Map<String, Record> decoded = new LinkedHashMap<>();
+    for (Store.Entry entry : entries) {
+      String[] fields = logged.get(entry.toString());
+      if (fields == null) continue;
+      Record record = decode(entry, fields);
+      if (record == null) invalid = true;
+      else decoded.put(entry.toString(), record);
+    }
+    Map<String, Record> records = EntryStamp.valid(decoded, entries, Record::stamp);
+
+    MailboxQuarantine quarantine = new MailboxQuarantine(box, records);
+    if (invalid || records.size() != logged.size()) quarantine.rewrite();
+    return quarantine;
+  }
+
+  /**
+   * Decodes the fields of a record of the sidecar into a record for the given entry.
+   *
+   * @param entry the entry
+   * @param fields the size, last modified time, offset and error of the record
+   * @return the record, or null if the fields cannot be parsed
+   */
+  private static Record decode(Store.Entry entry, String[] fields) {
+    try {
+      return new Record(
+          new EntryStamp(Long.parseLong(fields[0]), Long.parseLong(fields[1])),
+          new QuarantinedEntry(entry, Long.parseLong(fields[2]), fields[3]));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Tells whether the given entry is quarantined.
+   *
+   * @param entry the entry
+   * @return whether the entry is quarantined
+   */
+  public synchronized boolean contains(Store.Entry entry) {
+    return records.containsKey(entry.toString());
+  }
+
+  /**
+   * Quarantines the given entry, replacing its previous record if any.
+   *
+   * <p>The entry is quarantined only for the current session if its attributes cannot be read.
+   *
+   * @param entry the entry
+   * @param offset the offset of the content of the entry where the error was found
+   * @param error the description of the error
+   * @return the quarantined entry
+   * @throws IllegalArgumentException if the entry or the error are null, or the offset is negative
+   */
+  public synchronized QuarantinedEntry put(Store.Entry entry, long offset, String error)
+      throws IllegalArgumentException {
+    if (error != null) error = error.replaceAll("[^\\x20-\\x7e]+", " ");
+    QuarantinedEntry quarantined = new QuarantinedEntry(entry, offset, error);
+    Record record = new Record(EntryStamp.of(entry), quarantined);
+    if (records.put(entry.toString(), record) != null) rewrite();
+    else if (record.stamp() != null) box.appendSidecar(SIDECAR, encode(entry.toString(), record));
+    return quarantined;
+  }
+
+  /**
+   * Returns the quarantined entries, in the order they were quarantined.
+   *
+   * @return the list of the quarantined entries
+   */
+  public synchronized List<QuarantinedEntry> getEntries() {
+    List<QuarantinedEntry> entries = new ArrayList<>();
+    for (Record record : records.values()) entries.add(record.entry());
+    return entries;
+  }
+
+  /** Rewrites the sidecar so that it contains only the current records. */
+  private void rewrite() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Record> record : records.entrySet())
+      if (record.getValue().stamp() != null) sb.append(encode(record.getKey(), record.getValue()));
+    box.sidecar(SIDECAR, ASCIICharSequence.of(sb.toString()));
+  }
+
+  /**
+   * Returns the ASCII representation of a record in the sidecar.
+   *
+   * @param name the name of the entry
+   * @param record the record
+   * @return the ASCII representation of the record
+   */
+  private static ASCIICharSequence encode(String name, Record record) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(name).append(' ').append(record.stamp().size());
+    sb.append(' ').append(record.stamp().lastModified());
+    sb.append(' ').append(record.entry().getOffset()).append('\n');
+    sb.append(record.entry().getError()).append('\n');
+    return ASCIICharSequence.of(sb.toString());
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+import utils.Store;
+
+/**
+ * Imports the messages of a classic Unix mbox file into a Store.Box.
+ *
+ * <p>The file is read through a buffer of {@link #BUFFER_SIZE} bytes and split in messages at the
+ * {@code From } lines that start the file or follow an empty line; the {@code From } lines
+ * themselves are dropped, and the lines escaped as {@code >From } (or {@code >>From }, and so on)
+ * are unescaped by removing one {@code >}. Every message is decoded with {@link EntryEncoding}
+ * into a {@link Message}, whose encoding is stored in the box with {@link
+ * Store.Box#entryAsync(ASCIICharSequence)}, so that the writes are batched by the store; messages
+ * that can't be decoded (for instance because they contain non ASCII bytes, or miss some required
+ * header) are skipped.
+ *
+ * <p>At most {@link #MAX_PENDING} messages are waiting to be stored at any time, so the memory used
+ * by an import depends on the size of the largest messages, not on the size of the file. The
+ * progress of the imports can be followed, from any thread, with the getters of this class.
+ */
+public final class MboxImporter {
+  /* Abstraction Function:
+   * Represents an importer of mbox files into the box box. bytesRead, imported, skipped and failed
+   * are the number of bytes read, of messages stored, of messages that could not be decoded and of
+   * messages that could not be stored by all the imports done so far; started is the value of
+   * System.nanoTime() when the first import started, or -1 if no import started yet.
+   *
+   * Representation Invariant:
+   * - box is not null
+   * - bytesRead, imported, skipped and failed are not null and hold non negative values
+   */
+
+  /** The size of the buffer through which the mbox files are read */
+  public static final int BUFFER_SIZE = 64 << 10;
+
+  /** The maximum number of messages waiting to be stored */
+  public static final int MAX_PENDING = 256;
+
+  /** The bytes starting a line that separates two messages */
+  private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+  /** The box in which the messages are imported */
+  private final Store.Box box;
+
+  /** Number of bytes read */
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  /** Number of messages stored */
+  private final AtomicLong imported = new AtomicLong();
+
+  /** Number of messages that could not be decoded */
+  private final AtomicLong skipped = new AtomicLong();
+
+  /** Number of messages that could not be stored */
+  private final AtomicLong failed = new AtomicLong();
+
+  /** The time the first import started, or -1 */
+  private final AtomicLong started = new AtomicLong(-1);
+
+  /**
+   * Constructs a new MboxImporter object importing into the given box.
+   *
+   * @param box the box in which the messages are imported
+   * @throws IllegalArgumentException if the box is null
+   */
+  public MboxImporter(Store.Box box) {
+    if (box == null) throw new IllegalArgumentException("The box cannot be null");
+    this.box = box;
+  }
+
+  /**
+   * Imports the messages of the mbox file at the given path.
+   *
+   * @param path the path of the mbox file
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if the path is null
+   * @see #importFrom(InputStream)
+   */
+  public void importFrom(Path path) throws IOException {
+    if (path == null) throw new IllegalArgumentException("The path cannot be null");
+    try (InputStream in = Files.newInputStream(path)) {
+      importFrom(in);
+    }
+  }
+
+  /**
+   * Imports the messages of the mbox file read from the given stream, which is not closed.
+   *
+   * <p>The method returns once every message of the file has been stored (or has failed to be
+   * stored).
+   *
+   * @param in the stream of the mbox file
+   * @throws IOException if the stream can't be read
+   * @throws IllegalArgumentException if the stream is null
+   */
+  public void importFrom(InputStream in) throws IOException {
+    if (in == null) throw new IllegalArgumentException("The stream cannot be null");
+    started.compareAndSet(-1, System.nanoTime());
+    Splitter splitter = new Splitter();
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      ByteArrayOutputStream partial = new ByteArrayOutputStream();
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        bytesRead.addAndGet(read);
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+          if (buffer[i] != '\n') continue;
+          if (partial.size() == 0) splitter.line(buffer, start, i - start);
+          else {
+            partial.write(buffer, start, i - start);
+            splitter.line(partial.toByteArray(), 0, partial.size());
+            partial.reset();
+          }
+          start = i + 1;
+        }
+        partial.write(buffer, start, read - start);
+      }
+      if (partial.size() > 0) splitter.line(partial.toByteArray(), 0, partial.size());
+      splitter.flush();
+    } finally {
+      splitter.drain(0);
+    }
+  }
+
+  /** Splits the lines of an mbox file in messages, and stores them in the box. */
+  private class Splitter {
+    /* Abstraction Function:
+     * message holds the lines of the current message read so far, but for a trailing empty line,
+     * which is recorded by pendingEmpty as it may separate the message from the next one;
+     * inMessage is false until the first message starts. pending holds the futures of the
+     * messages being stored, oldest first.
+     *
+     * Representation Invariant:
+     * - message and pending are not null
+     * - if inMessage is false, message is empty and pendingEmpty is false
+     * - pending holds at most MAX_PENDING futures
+     */
+
+    /** The current message */
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+
+    /** The futures of the messages being stored */
+    private final Deque<CompletableFuture<?>> pending = new ArrayDeque<>();
+
+    /** Whether the first message started */
+    private boolean inMessage;
+
+    /** Whether the last line read is empty */
+    private boolean pendingEmpty;
+
+    /**
+     * Adds a line (without its terminator) to the current message, or starts a new message.
+     *
+     * @param bytes the bytes containing the line
+     * @param offset the offset of the line in bytes
+     * @param length the length of the line
+     */
+    private void line(byte[] bytes, int offset, int length) {
+      if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+      if ((!inMessage || pendingEmpty) && startsWithFrom(bytes, offset, length)) {
+        flush();
+        inMessage = true;
+        pendingEmpty = false;
+        return;
+      }
+      if (!inMessage) return;
+      if (pendingEmpty) message.write('\n');
+      pendingEmpty = length == 0;
+      if (pendingEmpty) return;
+      int quotes = 0;
+      while (quotes < length && bytes[offset + quotes] == '>') quotes++;
+      if (quotes > 0 && startsWithFrom(bytes, offset + quotes, length - quotes)) {
+        offset++;
+        length--;
+      }
+      message.write(bytes, offset, length);
+      message.write('\n');
+    }
+
+    /** Stores the current message, if any, and starts an empty one. */
+    private void flush() {
+      if (!inMessage) return;
+      byte[] bytes = message.toByteArray();
+      message.reset();
+      pendingEmpty = false;
+      ASCIICharSequence encoded;
+      try {
+        Message decoded =
+            new Message(
+                Message.createMessageParts(EntryEncoding.decode(bytes)));
+        encoded = decoded.encodeToASCII();
+      } catch (IllegalArgumentException | MissingHeaderException e) {
+        skipped.incrementAndGet();
+        return;
+      }
+      drain(MAX_PENDING - 1);
+      pending.add(box.entryAsync(encoded));
+    }
+
+    /**
+     * Waits for the oldest messages being stored, until at most max are left.
+     *
+     * @param max the maximum number of messages left being stored
+     */
+    private void drain(int max) {
+      while (pending.size() > max) {
+        try {
+          pending.remove().join();
+          imported.incrementAndGet();
+        } catch (CompletionException e) {
+          failed.incrementAndGet();
+        }
+      }
+    }
+
+    /**
+     * Returns whether the given line starts with {@code From }.
+     *
+     * @param bytes the bytes containing the line
+     * @param offset the offset of the line in bytes
+     * @param length the length of the line
+     * @return whether the line starts with {@code From }
+     */
+    private boolean startsWithFrom(byte[] bytes, int offset, int length) {
+      if (length < FROM.length) return false;
+      for (int i = 0; i < FROM.length; i++) if (bytes[offset + i] != FROM[i]) return false;
+      return true;
+    }
+  }
+
+  /**
+   * Returns the number of bytes read so far.
+   *
+   * @return the number of bytes read
+   */
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /**
+   * Returns the number of messages stored so far.
+   *
+   * @return the number of messages stored
+   */
+  public long getImported() {
+    return imported.get();
+  }
+
+  /**
+   * Returns the number of messages skipped so far, because they could not be decoded.
+   *
+   * @return the number of messages skipped
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Returns the number of messages that could not be stored so far.
+   *
+   * @return the number of messages that failed
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the average throughput of the imports, from the start of the first one.
+   *
+   * @return the number of bytes read per second, 0 if no import started yet
+   */
+  public double getThroughput() {
+    long start = started.get();
+    if (start == -1) return 0;
+    long elapsed = System.nanoTime() - start;
+    return elapsed <= 0 ? 0 : bytesRead.get() * 1e9 / elapsed;
+  }
+}
@@ -8,6 +8,8 @@ package mua;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import utils.ASCIICharSequence;
 import utils.Fragment;
 
@@ -18,20 +20,36 @@ public final class Message {
    * Represents a message composed of multiple message parts. An instance of Message represents a
    * message with the following parts: messageParts.get(0), messageParts.get(1), ..., messageParts.get(n).
    * Each message needs to contain at least one part.
+   * A lazy message has no parts until they are first needed: at that point they are produced by
+   * loader, checked, and stored in messageParts, after which the message behaves as any other.
+   * summary holds the From, To, Subject and Date headers of the first part, once known: it is
+   * produced by summaryLoader, if not null, or else taken from the parts, the first time it is
+   * needed; so the summary of a lazy message can be known without loading the message.
    * The first part of the message must contain the From, To, Subject, and Date headers.
    * The ASCII representation of the message is the concatenation of the ASCII representations of its parts,
    * separated by a newline character.
    *
    * Representation Invariant:
-   * - messageParts is not null and does not contain null elements.
-   * - messageParts is not empty.
+   * - exactly one of messageParts and loader is null.
+   * - if summary is not null, summaryLoader is null.
+   * - if not null, messageParts does not contain null elements.
+   * - if not null, messageParts is not empty.
    * - The first part of the message must contain the From, To, Subject, and Date headers.
    * - The ASCII representation of the message is the concatenation of the ASCII representations of its parts,
    *   separated by a newline character.
    */
 
-  /** The list of message parts */
-  private final List<MessagePart> messageParts;
+  /** The list of message parts, null until a lazy message is loaded */
+  private List<MessagePart> messageParts;
+
+  /** The loader of the message parts, null once the message is loaded */
+  private Supplier<List<MessagePart>> loader;
+
+  /** The summary of the message, null until known */
+  private MessageSummary summary;
+
+  /** The loader of the summary, null if the summary is known or is to be taken from the parts */
+  private Supplier<MessageSummary> summaryLoader;
 
   /**
    * Constructs a message with the given List of MessageParts.
@@ -42,8 +60,67 @@ public final class Message {
    */
   public Message(List<MessagePart> messageParts)
       throws MissingHeaderException, IllegalArgumentException {
+    checkParts(messageParts);
     this.messageParts = messageParts;
+  }
+
+  /**
+   * Constructs a lazy message with the given loaders.
+   *
+   * @param summaryLoader the loader of the summary, or null to take it from the parts
+   * @param loader the loader of the message parts
+   */
+  private Message(Supplier<MessageSummary> summaryLoader, Supplier<List<MessagePart>> loader) {
+    this.summaryLoader = summaryLoader;
+    this.loader = loader;
+  }
+
+  /**
+   * Constructs a message whose parts are loaded the first time they are needed.
+   *
+   * <p>The loader is invoked at most once, when one of the methods reading the parts of the message
+   * is first called; the parts it returns are checked as in {@link #Message(List)}, so a {@link
+   * MissingHeaderException} or an {@link IllegalArgumentException} may be thrown at that point.
+   *
+   * @param loader the loader of the message parts
+   * @return the lazy message
+   * @throws IllegalArgumentException if the loader is null
+   */
+  public static Message lazy(Supplier<List<MessagePart>> loader) throws IllegalArgumentException {
+    return lazy(null, loader);
+  }
+
+  /**
+   * Constructs a message whose parts are loaded the first time they are needed, and whose summary
+   * is loaded separately.
+   *
+   * <p>The summary loader is invoked at most once, when the summary is first needed (see {@link
+   * #getSummary()}) and the parts are not loaded yet, so that listing or sorting messages doesn't
+   * load them; it may return a summary already known, or decode one with {@link
+   * MessageSummary#fromRawHeaders(List)}. See {@link #lazy(Supplier)}.
+   *
+   * @param summaryLoader the loader of the summary, or null to take it from the parts
+   * @param loader the loader of the message parts
+   * @return the lazy message
+   * @throws IllegalArgumentException if the loader is null
+   */
+  public static Message lazy(
+      Supplier<MessageSummary> summaryLoader, Supplier<List<MessagePart>> loader)
+      throws IllegalArgumentException {
+    if (loader == null) throw new IllegalArgumentException("The loader cannot be null");
+    return new Message(summaryLoader, loader);
+  }
 
+  /**
+   * Checks that the given list of MessageParts can make up a message.
+   *
+   * @param messageParts the list of MessageParts
+   * @throws MissingHeaderException if the first part of the message does not contain the From, To,
+   *     Subject, and Date headers
+   * @throws IllegalArgumentException if the list is null, empty or its first part is null
+   */
+  private static void checkParts(List<MessagePart> messageParts)
+      throws MissingHeaderException, IllegalArgumentException {
     if (messageParts == null)
       throw new IllegalArgumentException("The message parts cannot be null");
     if (messageParts.isEmpty())
@@ -64,6 +141,30 @@ public final class Message {
           "The first part of the message must contain the From, To, Subject, and Date headers");
   }
 
+  /**
+   * Returns the list of message parts, loading it first if the message is lazy and not yet loaded.
+   *
+   * @return the list of message parts
+   */
+  private synchronized List<MessagePart> parts() {
+    if (loader != null) {
+      List<MessagePart> loaded = loader.get();
+      checkParts(loaded);
+      messageParts = loaded;
+      loader = null;
+    }
+    return messageParts;
+  }
+
+  /**
+   * Returns whether the parts of the message are available without invoking its loader.
+   *
+   * @return true if the message is not lazy or has already been loaded
+   */
+  public synchronized boolean isLoaded() {
+    return loader == null;
+  }
+
   /**
    * Constructs a list of MessageParts from the given List of Fragments.
    *
@@ -85,13 +186,67 @@ public final class Message {
     return messageParts;
   }
 
+  /**
+   * Finds the header of the first part of the message with the specified Header type.
+   *
+   * <p>The headers of the summary of a lazy message are returned without loading it, if the
+   * summary is known or can be loaded on its own.
+   *
+   * @param headerClass the class of the header to find
+   * @return the header with the specified type, or null if not found.
+   */
+  public Header getHeader(Class<?> headerClass) {
+    synchronized (this) {
+      if (loader != null && (summary != null || summaryLoader != null)) {
+        Header header = getSummary().getHeader(headerClass);
+        if (header != null) return header;
+      }
+    }
+    return parts().get(0).getHeader(headerClass);
+  }
+
+  /**
+   * Returns the summary of the message, that is the From, To, Subject, and Date headers of its
+   * first part.
+   *
+   * <p>The summary of a lazy message is loaded on its own, if it has a summary loader; otherwise
+   * the message is loaded.
+   *
+   * @return the summary of the message
+   * @throws MissingHeaderException if the summary loader returns null
+   */
+  public synchronized MessageSummary getSummary() throws MissingHeaderException {
+    if (summary == null) {
+      if (summaryLoader != null && loader != null) {
+        MessageSummary loaded = summaryLoader.get();
+        if (loaded == null) throw new MissingHeaderException("The summary cannot be loaded");
+        summary = loaded;
+      } else summary = new MessageSummary(parts().get(0).getHeaders());
+      summaryLoader = null;
+    }
+    return summary;
+  }
+
+  /**
+   * Returns the summary headers of the message: the From, To, Subject, and Date headers of its
+   * first part, in this order.
+   *
+   * <p>The summary headers of a lazy message are returned without loading it, if possible; see
+   * {@link #getSummary()}.
+   *
+   * @return the list of summary headers of the message
+   */
+  public List<Header> getSummaryHeaders() {
+    return new ArrayList<>(getSummary().getHeaders());
+  }
+
   /**
    * Returns a copy of the list of message parts.
    *
    * @return a copy of the list of message parts
    */
   public List<MessagePart> getParts() {
-    return new ArrayList<>(messageParts);
+    return new ArrayList<>(parts());
   }
 
   /**
@@ -103,13 +258,25 @@ public final class Message {
    * @return the ASCII representation of the message.
    */
   public ASCIICharSequence encodeToASCII() {
+    return encodeToASCII(MessagePart::getBody);
+  }
+
+  /**
+   * Returns the ASCII representation of the message, where the ASCII representation of the body of
+   * each part is the one given by the bodies function.
+   *
+   * @param bodies the function returning the ASCII representation of the body of a part
+   * @return the ASCII representation of the message.
+   */
+  ASCIICharSequence encodeToASCII(Function<MessagePart, ASCIICharSequence> bodies) {
     StringBuilder sb = new StringBuilder();
+    List<MessagePart> messageParts = parts();
 
     MessagePart firstPart = messageParts.get(0);
     for (MessagePart part : messageParts) {
       ContentTypeHeader contentHeader =
           (ContentTypeHeader) firstPart.getHeader(ContentTypeHeader.class);
-      sb.append(part.encodeToASCII());
+      sb.append(part.encodeToASCII(bodies.apply(part)));
       sb.append("\n");
       if (contentHeader != null && contentHeader.getBoundary() != "") {
         sb.append("--");
@@ -6,6 +6,7 @@
 
 package mua;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -22,20 +23,28 @@ public final class MessagePart {
    * - headers: the list of headers of the message part
    * - body: the body of the message part
    * The body of the message part is saved as an encoded ASCIICharSequence if the Content-Transfer-Encoding header is set to "base64".
+   * If fragment is not null, the body is the raw body of the fragment (turned into the form returned by
+   * Base64Encoding.encode if the body is encoded), and body caches it once built.
    * The ASCII representation of the message part is the concatenation of the ASCII representations of its headers,
    * followed by a newline character, and the body.
    *
    * Representation Invariant:
    * - headers is not null and does not contain null elements.
    * - headers cannot be empty.
-   * - body is not null or empty.
+   * - body and fragment are not both null.
+   * - the body is not empty.
+   * - if fragment is not null and the body is encoded, the raw body of fragment is in the form checked
+   *   by Base64Encoding.isCanonical.
    */
 
   /** The list of headers of the message part */
   private final List<Header> headers;
 
-  /** The body of the message part */
-  public final ASCIICharSequence body;
+  /** The fragment the message part was decoded from, or null */
+  private final Fragment fragment;
+
+  /** The body of the message part, or null until it is built from the fragment */
+  private volatile ASCIICharSequence body;
 
   /**
    * Construct a MessagePart object with the specified headers and body. The headers of the message
@@ -52,6 +61,7 @@ public final class MessagePart {
     if (headers.contains(null)) throw new IllegalArgumentException("The headers cannot be null");
 
     this.headers = new ArrayList<>(headers);
+    this.fragment = null;
     reorderHeaders();
 
     ContentTransferEncodingHeader contentEncodingHeader =
@@ -67,12 +77,28 @@ public final class MessagePart {
     }
   }
 
+  /**
+   * Construct a MessagePart object with the specified headers, whose body is the raw body of the
+   * specified fragment; the body is kept in the fragment until it's needed.
+   *
+   * @param headers the headers of the message part
+   * @param fragment the fragment the message part was decoded from
+   */
+  private MessagePart(List<Header> headers, Fragment fragment) {
+    this.headers = new ArrayList<>(headers);
+    this.fragment = fragment;
+    reorderHeaders();
+  }
+
   /**
    * Static constructor of a MessagePart object with the specified Fragment.
    *
    * <p>The Fragment must contain at least one header and a body. The headers of the message part
    * are parsed from the raw headers of the Fragment. The body of the message part is the raw body
-   * of the Fragment.
+   * of the Fragment, which is not copied out of it: if it's Base64 encoded in the form returned by
+   * {@link Base64Encoding#encode(String)}, it's neither decoded nor encoded again, otherwise it's
+   * decoded and encoded again in that form, as it happens for the parts constructed from their
+   * decoded body.
    *
    * @param fragment the Fragment
    * @throws IllegalArgumentException if the fragment is null
@@ -84,20 +110,24 @@ public final class MessagePart {
     if (fragment == null) throw new IllegalArgumentException("The fragment cannot be null");
     if (fragment.rawHeaders().isEmpty())
       throw new IllegalArgumentException("The fragment must contain at least one header");
-    if (fragment.rawBody().isEmpty())
+    ByteBuffer rawBody = fragment.rawBodyBuffer();
+    if (!rawBody.hasRemaining())
       throw new IllegalArgumentException("The fragment must contain a body");
 
     List<Header> headers = new ArrayList<>();
-    String body = fragment.rawBody().toString();
+    boolean encoded = false;
 
     for (List<ASCIICharSequence> rawHeader : fragment.rawHeaders()) {
       Header header = parseHeader(rawHeader);
       headers.add(header);
       if (header.getType().equals("Content-Transfer-Encoding"))
-        if (header.getValue().equals("base64")) body = Base64Encoding.decode(fragment.rawBody());
+        if (header.getValue().equals("base64")) encoded = true;
     }
 
-    return new MessagePart(headers, body);
+    if (encoded && !Base64Encoding.isCanonical(rawBody))
+      return new MessagePart(headers, Base64Encoding.decode(rawBody));
+
+    return new MessagePart(headers, fragment);
   }
 
   /**
@@ -170,6 +200,37 @@ public final class MessagePart {
     return HeaderFactory.createHeader(headerName, headerValue);
   }
 
+  /**
+   * Returns whether the body of the message part is encoded with Base64, according to the
+   * ContentTransferEncodingHeader.
+   *
+   * @return whether the body is encoded
+   */
+  private boolean isEncoded() {
+    ContentTransferEncodingHeader contentEncodingHeader =
+        (ContentTransferEncodingHeader) getHeader(ContentTransferEncodingHeader.class);
+
+    return contentEncodingHeader != null && contentEncodingHeader.getValue().equals("base64");
+  }
+
+  /**
+   * Returns the body of the message part, encoded with Base64 if the Content-Transfer-Encoding
+   * header is set to "base64".
+   *
+   * <p>If the message part was decoded from a Fragment, the body is copied out of it at the first
+   * call.
+   *
+   * @return the body of the message part
+   */
+  public ASCIICharSequence getBody() {
+    ASCIICharSequence body = this.body;
+    if (body == null) {
+      body = isEncoded() ? Base64Encoding.canonical(fragment.rawBodyBuffer()) : fragment.rawBody();
+      this.body = body;
+    }
+    return body;
+  }
+
   /**
    * Returns a copy of the headers of the message part.
    *
@@ -187,6 +248,17 @@ public final class MessagePart {
    * @return the ASCII representation of the message part
    */
   public ASCIICharSequence encodeToASCII() {
+    return encodeToASCII(getBody());
+  }
+
+  /**
+   * Returns the ASCII representation of the message part, with the given ASCII representation of
+   * the body in place of the one of its own body.
+   *
+   * @param body the ASCII representation of the body
+   * @return the ASCII representation of the message part
+   */
+  ASCIICharSequence encodeToASCII(ASCIICharSequence body) {
     StringBuilder sb = new StringBuilder();
     for (Header header : headers) {
       sb.append(header.encodeToASCII());
@@ -206,12 +278,11 @@ public final class MessagePart {
    * @return the decoded body of the message part
    */
   public String getBodyDecoded() {
-    ContentTransferEncodingHeader contentEncodingHeader =
-        (ContentTransferEncodingHeader) getHeader(ContentTransferEncodingHeader.class);
-
-    if (contentEncodingHeader != null && contentEncodingHeader.getValue().equals("base64"))
-      return Base64Encoding.decode(this.body);
+    if (isEncoded())
+      return fragment != null
+          ? Base64Encoding.decode(fragment.rawBodyBuffer())
+          : Base64Encoding.decode(this.body);
 
-    return this.body.toString();
+    return getBody().toString();
   }
 }
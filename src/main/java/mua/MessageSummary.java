@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import utils.ASCIICharSequence;
+import utils.EntryEncoding;
+
+/**
+ * Represents the summary of a message: the From, To, Subject and Date headers of its first part.
+ *
+ * <p>A summary can be built from the top-level raw headers of an encoded message, as returned by
+ * {@link EntryEncoding#decodeHeaders(ASCIICharSequence)}, so that listing and sorting messages does
+ * not require to decode (or even scan) their bodies.
+ */
+public final class MessageSummary {
+  /*
+   * Abstraction Function:
+   * Represents the summary of a message whose From, To, Subject and Date headers are
+   * headers.get(0), headers.get(1), headers.get(2) and headers.get(3).
+   *
+   * Representation Invariant:
+   * - headers is not null and unmodifiable.
+   * - headers contains one SenderHeader, RecipientsHeader, SubjectHeader and DateHeader, in this
+   *   order.
+   */
+
+  /** The classes of the headers making up a summary, in order */
+  private static final List<Class<? extends Header>> HEADERS =
+      List.of(SenderHeader.class, RecipientsHeader.class, SubjectHeader.class, DateHeader.class);
+
+  /** The names of the raw headers making up a summary, in lower case */
+  private static final List<String> RAW_HEADERS = List.of("from", "to", "subject", "date");
+
+  /** The From, To, Subject and Date headers */
+  private final List<Header> headers;
+
+  /**
+   * Constructs a summary with the given headers, which may contain other headers too. If there is
+   * more than one header of a kind, the first one is used.
+   *
+   * @param headers the headers of the first part of a message
+   * @throws IllegalArgumentException if the headers are null
+   * @throws MissingHeaderException if the headers do not contain the From, To, Subject, and Date
+   *     headers
+   */
+  public MessageSummary(List<Header> headers)
+      throws IllegalArgumentException, MissingHeaderException {
+    if (headers == null) throw new IllegalArgumentException("The headers cannot be null");
+
+    List<Header> summary = new ArrayList<>();
+    for (Class<? extends Header> headerClass : HEADERS)
+      for (Header header : headers)
+        if (headerClass.isInstance(header)) {
+          summary.add(header);
+          break;
+        }
+    if (summary.size() != HEADERS.size())
+      throw new MissingHeaderException(
+          "The summary must contain the From, To, Subject, and Date headers");
+
+    this.headers = List.copyOf(summary);
+  }
+
+  /**
+   * Constructs a summary from the given raw headers; only the From, To, Subject and Date ones are
+   * parsed, the others are ignored.
+   *
+   * @param rawHeaders the raw headers, as returned by {@link
+   *     EntryEncoding#decodeHeaders(ASCIICharSequence)}
+   * @return the summary
+   * @throws IllegalArgumentException if the raw headers are null, or some of them can't be parsed
+   * @throws MissingHeaderException if the raw headers do not contain the From, To, Subject, and
+   *     Date headers
+   */
+  public static MessageSummary fromRawHeaders(List<List<ASCIICharSequence>> rawHeaders)
+      throws IllegalArgumentException, MissingHeaderException {
+    if (rawHeaders == null) throw new IllegalArgumentException("The raw headers cannot be null");
+
+    List<Header> headers = new ArrayList<>();
+    for (List<ASCIICharSequence> rawHeader : rawHeaders) {
+      if (rawHeader.size() != 2)
+        throw new IllegalArgumentException("The raw header must contain two elements");
+      String name = rawHeader.get(0).toString();
+      if (RAW_HEADERS.contains(name))
+        headers.add(HeaderFactory.createHeader(name, rawHeader.get(1).toString()));
+    }
+    return new MessageSummary(headers);
+  }
+
+  /**
+   * Returns the header of the summary with the specified Header type.
+   *
+   * @param headerClass the class of the header to find
+   * @return the header with the specified type, or null if it is not part of a summary
+   */
+  public Header getHeader(Class<?> headerClass) {
+    for (Header header : headers) if (headerClass.isInstance(header)) return header;
+    return null;
+  }
+
+  /**
+   * Returns the headers of the summary: the From, To, Subject, and Date headers, in this order.
+   *
+   * @return the unmodifiable list of headers of the summary
+   */
+  public List<Header> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Returns the date of the message.
+   *
+   * @return the value of the Date header
+   */
+  public ZonedDateTime getDate() {
+    return (ZonedDateTime) headers.get(3).getValue();
+  }
+}
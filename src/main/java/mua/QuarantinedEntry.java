@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package mua;
+
+import utils.Store;
+
+/**
+ * Represents an entry that could not be loaded as a message, together with the error found and
+ * where it was found.
+ */
+public final class QuarantinedEntry {
+  /*
+   * Abstraction Function:
+   * Represents the entry entry, whose content could not be decoded into a message because of the
+   * error error, found at the byte offset offset of the content.
+   *
+   * Representation Invariant:
+   * - entry is not null.
+   * - error is not null.
+   * - offset is not negative.
+   */
+
+  /** The entry */
+  private final Store.Entry entry;
+
+  /** The offset of the content of the entry where the error was found */
+  private final long offset;
+
+  /** The description of the error */
+  private final String error;
+
+  /**
+   * Constructs a QuarantinedEntry object with the given entry, offset and error.
+   *
+   * @param entry the entry
+   * @param offset the offset of the content of the entry where the error was found
+   * @param error the description of the error
+   * @throws IllegalArgumentException if the entry or the error are null, or the offset is negative
+   */
+  public QuarantinedEntry(Store.Entry entry, long offset, String error)
+      throws IllegalArgumentException {
+    if (entry == null) throw new IllegalArgumentException("The entry cannot be null");
+    if (error == null) throw new IllegalArgumentException("The error cannot be null");
+    if (offset < 0) throw new IllegalArgumentException("The offset cannot be negative");
+    this.entry = entry;
+    this.offset = offset;
+    this.error = error;
+  }
+
+  /**
+   * Returns the entry.
+   *
+   * @return the entry
+   */
+  public Store.Entry getEntry() {
+    return entry;
+  }
+
+  /**
+   * Returns the offset of the content of the entry where the error was found: the offset of the
+   * offending byte or line, or of the start of the offending part, or 0 if it is not known. For
+   * entries referring to the blob store, the offset is the one in the content where the references
+   * are expanded.
+   *
+   * @return the offset
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the description of the error.
+   *
+   * @return the description of the error
+   */
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return entry.box() + ":" + entry + " at " + offset + ": " + error;
+  }
+}
@@ -6,27 +6,68 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
-/** An implementation of {@link CharSequence} that contains ASCII characters. */
+/**
+ * An implementation of {@link CharSequence} that contains ASCII characters.
+ *
+ * <p>A sequence is a view of a range of an array of ASCII bytes, that is never modified: {@link
+ * #subSequence(int, int)} returns a view of the same array, without copying it, and sequences
+ * built from bytes already known to be ASCII (such as the ones of another sequence) are not
+ * checked again. The {@link String} returned by {@link #toString()} is built once, when first
+ * needed.
+ */
 public class ASCIICharSequence implements CharSequence {
 
-  private final String value;
+  private final byte[] bytes;
+  private final int offset, length;
+  private String value;
+  private int hash;
 
   /**
    * Checks if the given string is ASCII.
    *
+   * <p>The check allocates nothing, so it can be repeated cheaply.
+   *
    * @param data the string to check.
    * @return if the string non {@code null} and contains only ASCII characters.
    */
   public static boolean isAscii(final String data) {
-    return data != null && StandardCharsets.US_ASCII.newEncoder().canEncode(data);
+    return data != null && AsciiScanner.isAscii(data);
+  }
+
+  /**
+   * Checks if the given bytes are ASCII.
+   *
+   * @param bytes the bytes to check.
+   * @return if the bytes are non {@code null} and contain no negative byte.
+   */
+  public static boolean isAscii(final byte[] bytes) {
+    return bytes != null && AsciiScanner.isAscii(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Checks if the bytes between the position and the limit of the given buffer are ASCII; the
+   * buffer position is not changed.
+   *
+   * @param buffer the buffer to check.
+   * @return if the buffer is non {@code null} and its remaining bytes contain no negative byte.
+   */
+  public static boolean isAscii(final ByteBuffer buffer) {
+    return buffer != null && AsciiScanner.isAscii(buffer);
+  }
+
+  private ASCIICharSequence(final byte[] bytes, final int offset, final int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
   }
 
   private ASCIICharSequence(final String data) {
-    if (!isAscii(data))
-      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
+    this(data.getBytes(StandardCharsets.US_ASCII), 0, data.length());
     this.value = data;
   }
 
@@ -38,34 +79,73 @@ public class ASCIICharSequence implements CharSequence {
    * @throws IllegalArgumentException if the string is not ASCII or {@code null}.
    */
   public static ASCIICharSequence of(final String data) throws IllegalArgumentException {
+    if (!isAscii(data))
+      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
     return new ASCIICharSequence(data);
   }
 
+  /*
+   * Constructs a sequence viewing a range of bytes known to be ASCII, without checking or copying
+   * them; the bytes must not be modified afterwards.
+   */
+  static ASCIICharSequence wrap(final byte[] bytes, final int from, final int to) {
+    Objects.checkFromToIndex(from, to, bytes.length);
+    return new ASCIICharSequence(bytes, from, to - from);
+  }
+
   /**
    * Constructs an {@link ASCIICharSequence} given a byte array.
    *
+   * <p>The bytes are copied, so that later changes to the array don't affect the sequence.
+   *
    * @param bytes the byte array.
    * @return the sequence.
-   * @throws NullPointerException if the byte array contains non ASCII bytes or is {@code null}.
+   * @throws IllegalArgumentException if the byte array contains non ASCII bytes.
+   * @throws NullPointerException if the byte array is {@code null}.
    */
-  public static ASCIICharSequence of(final byte[] bytes) {
-    return new ASCIICharSequence(
-        new String(Objects.requireNonNull(bytes), StandardCharsets.US_ASCII));
+  public static ASCIICharSequence of(final byte[] bytes)
+      throws IllegalArgumentException, NullPointerException {
+    if (!AsciiScanner.isAscii(Objects.requireNonNull(bytes), 0, bytes.length))
+      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
+    return new ASCIICharSequence(bytes.clone(), 0, bytes.length);
+  }
+
+  /**
+   * Constructs an {@link ASCIICharSequence} given a byte buffer.
+   *
+   * <p>The sequence contains the bytes between the position and the limit of the buffer; the
+   * buffer position is not changed. The bytes are checked and copied once, so that no intermediate
+   * array is needed if the buffer is not backed by one (as in the case of mapped buffers).
+   *
+   * @param buffer the byte buffer.
+   * @return the sequence.
+   * @throws IllegalArgumentException if the buffer contains non ASCII bytes.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static ASCIICharSequence of(final ByteBuffer buffer)
+      throws IllegalArgumentException, NullPointerException {
+    if (!AsciiScanner.isAscii(Objects.requireNonNull(buffer)))
+      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
+    final int start = buffer.position(), length = buffer.remaining();
+    final byte[] bytes = new byte[length];
+    buffer.get(start, bytes);
+    return new ASCIICharSequence(bytes, 0, length);
   }
 
   @Override
   public int length() {
-    return value.length();
+    return length;
   }
 
   @Override
   public char charAt(int index) {
-    return value.charAt(index);
+    return (char) bytes[offset + Objects.checkIndex(index, length)];
   }
 
   @Override
   public ASCIICharSequence subSequence(int start, int end) {
-    return new ASCIICharSequence(value.substring(start, end));
+    Objects.checkFromToIndex(start, end, length);
+    return new ASCIICharSequence(bytes, offset + start, end - start);
   }
 
   /**
@@ -75,7 +155,16 @@ public class ASCIICharSequence implements CharSequence {
    * @return if this sequence is equal to the other, ignoring case.
    */
   public boolean equalsIgnoreCase(ASCIICharSequence other) {
-    return value.equalsIgnoreCase(other.value);
+    if (other.length != length) return false;
+    for (int i = 0; i < length; i++) {
+      final byte a = bytes[offset + i], b = other.bytes[other.offset + i];
+      if (a != b && (toLowerCase(a) != toLowerCase(b))) return false;
+    }
+    return true;
+  }
+
+  private static byte toLowerCase(final byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
   }
 
   /**
@@ -85,7 +174,9 @@ public class ASCIICharSequence implements CharSequence {
    * @return the first position of the character, or -1 if the character is not present.
    */
   public int indexOf(char ch) {
-    return value.indexOf(ch);
+    if (ch > 0x7f) return -1;
+    for (int i = 0; i < length; i++) if (bytes[offset + i] == ch) return i;
+    return -1;
   }
 
   /**
@@ -97,32 +188,60 @@ public class ASCIICharSequence implements CharSequence {
    *     this sequence.
    */
   public ASCIICharSequence subSequence(int start) throws IndexOutOfBoundsException {
-    return new ASCIICharSequence(value.substring(start));
+    return subSequence(start, length);
   }
 
   /**
    * Returns the ASCII bytes of this sequence.
    *
-   * @return the bytes.
+   * @return a copy of the bytes.
    */
   public byte[] getASCIIBytes() {
-    return value.getBytes(StandardCharsets.US_ASCII);
+    return Arrays.copyOfRange(bytes, offset, offset + length);
+  }
+
+  /*
+   * Returns the ASCII bytes of this sequence, to be handed to I/O or decoded without copying them:
+   * if the sequence spans a whole array, the array itself is returned, and must not be modified;
+   * otherwise, a copy of the bytes is returned.
+   */
+  byte[] sharedBytes() {
+    if (offset == 0 && length == bytes.length) return bytes;
+    return getASCIIBytes();
   }
 
   @Override
   public String toString() {
+    String value = this.value;
+    if (value == null)
+      this.value = value = new String(bytes, offset, length, StandardCharsets.US_ASCII);
     return value;
   }
 
   @Override
   public boolean equals(Object obj) {
-    if (obj instanceof String) return value.equals(obj);
+    if (obj instanceof String) {
+      final String other = (String) obj;
+      if (other.length() != length) return false;
+      for (int i = 0; i < length; i++) if (other.charAt(i) != bytes[offset + i]) return false;
+      return true;
+    }
     if (!(obj instanceof ASCIICharSequence)) return false;
-    return value.equals(((ASCIICharSequence) obj).value);
+    final ASCIICharSequence other = (ASCIICharSequence) obj;
+    return Arrays.equals(
+        bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
   }
 
+  /**
+   * Returns the hash code of this sequence, that is the one of {@link #toString()}.
+   *
+   * @return the hash code.
+   */
   @Override
   public int hashCode() {
-    return value.hashCode();
+    int hash = this.hash;
+    if (hash == 0)
+      for (int i = 0; i < length; i++) hash = 31 * hash + bytes[offset + i];
+    return this.hash = hash;
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks whether strings, arrays and buffers contain only ASCII characters, a word at a time and
+ * without allocating anything.
+ *
+ * <p>Bytes are read eight at a time as a {@code long}, and checked at once against the high bit of
+ * every byte, as {@link LineScanner} does; characters of strings are or-ed together eight at a
+ * time, and checked at once against the bits above the seventh. The bytes (or characters) that
+ * don't fill a whole word are checked one at a time.
+ */
+final class AsciiScanner {
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long HIGHS = 0x8080808080808080L;
+  private static final int NON_ASCII = ~0x7f;
+
+  private AsciiScanner() {}
+
+  /**
+   * Checks whether a string contains only ASCII characters.
+   *
+   * @param data the string.
+   * @return if the string contains only ASCII characters.
+   */
+  static boolean isAscii(final String data) {
+    final int length = data.length();
+    int i = 0;
+    for (; i <= length - 8; i += 8)
+      if (((data.charAt(i)
+                  | data.charAt(i + 1)
+                  | data.charAt(i + 2)
+                  | data.charAt(i + 3)
+                  | data.charAt(i + 4)
+                  | data.charAt(i + 5)
+                  | data.charAt(i + 6)
+                  | data.charAt(i + 7))
+              & NON_ASCII)
+          != 0) return false;
+    for (; i < length; i++) if ((data.charAt(i) & NON_ASCII) != 0) return false;
+    return true;
+  }
+
+  /**
+   * Checks whether a range of bytes contains only ASCII bytes.
+   *
+   * @param bytes the bytes.
+   * @param from the start of the range (inclusive).
+   * @param to the end of the range (exclusive).
+   * @return if the range contains no negative byte.
+   */
+  static boolean isAscii(final byte[] bytes, final int from, final int to) {
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES)
+      if (((long) LONGS.get(bytes, i) & HIGHS) != 0) return false;
+    for (; i < to; i++) if (bytes[i] < 0) return false;
+    return true;
+  }
+
+  /**
+   * Checks whether the bytes between the position and the limit of a buffer are ASCII; the
+   * position of the buffer is not changed.
+   *
+   * @param buffer the buffer.
+   * @return if the bytes between the position and the limit contain no negative byte.
+   */
+  static boolean isAscii(final ByteBuffer buffer) {
+    final int from = buffer.position(), to = buffer.limit();
+    if (buffer.hasArray())
+      return isAscii(buffer.array(), buffer.arrayOffset() + from, buffer.arrayOffset() + to);
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES)
+      if ((buffer.getLong(i) & HIGHS) != 0) return false;
+    for (; i < to; i++) if (buffer.get(i) < 0) return false;
+    return true;
+  }
+}
@@ -6,6 +6,7 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Objects;
@@ -15,6 +16,7 @@ public class Base64Encoding {
 
   private static final String ENCODED_WORD_PREFIX = "=?utf-8?B?";
   private static final String ENCODED_WORD_SUFFIX = "?=";
+  private static final int LINE_LENGTH = 76;
 
   private Base64Encoding() {}
 
@@ -59,6 +61,95 @@ public class Base64Encoding {
         StandardCharsets.UTF_8);
   }
 
+  /**
+   * Decodes the Base64 encoded bytes of a buffer.
+   *
+   * <p>The bytes between the position and the limit of the buffer are decoded, without copying
+   * them first; the buffer position is not changed.
+   *
+   * @param buffer the buffer to decode.
+   * @return the decoded data.
+   * @throws IllegalArgumentException if the buffer is not correctly encoded.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static String decode(final ByteBuffer buffer)
+      throws IllegalArgumentException, NullPointerException {
+    return StandardCharsets.UTF_8
+        .decode(Base64.getMimeDecoder().decode(Objects.requireNonNull(buffer).duplicate()))
+        .toString();
+  }
+
+  /**
+   * Checks if the bytes of a buffer are in the form returned by {@link #encode(String)}, but for
+   * the line terminators, that can be {@code \r\n} or {@code \n}.
+   *
+   * <p>That is: lines of 76 characters of the Base64 alphabet (the last one possibly shorter),
+   * with the padding only at the end and the unused bits of the last character set to zero. The
+   * bytes between the position and the limit of the buffer are checked, without copying them.
+   *
+   * @param buffer the buffer to check.
+   * @return if the buffer is in the form returned by {@link #encode(String)}.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static boolean isCanonical(final ByteBuffer buffer) throws NullPointerException {
+    final int limit = Objects.requireNonNull(buffer).limit();
+    int column = 0, count = 0, padding = 0, last = 0;
+    for (int i = buffer.position(); i < limit; i++) {
+      final byte b = buffer.get(i);
+      if (b == '\r' || b == '\n') {
+        if (b == '\r' && (++i == limit || buffer.get(i) != '\n')) return false;
+        if (column != LINE_LENGTH || padding > 0 || i + 1 == limit) return false;
+        column = 0;
+        continue;
+      }
+      if (column++ == LINE_LENGTH) return false;
+      count++;
+      if (b == '=') padding++;
+      else if (padding > 0 || (last = value(b)) < 0) return false;
+    }
+    if (count % 4 != 0 || padding > 2) return false;
+    return padding == 0 || (last & (padding == 1 ? 0x3 : 0xf)) == 0;
+  }
+
+  /**
+   * Returns the bytes of a buffer in the form returned by {@link #encode(String)}.
+   *
+   * <p>The buffer must satisfy {@link #isCanonical(ByteBuffer)}, so that only its line terminators
+   * need to be turned into {@code \r\n}; the buffer position is not changed.
+   *
+   * @param buffer the buffer.
+   * @return the sequence of the bytes of the buffer, with {@code \r\n} line terminators.
+   * @throws IllegalArgumentException if the buffer is not in the form returned by {@link
+   *     #encode(String)}.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static ASCIICharSequence canonical(final ByteBuffer buffer)
+      throws IllegalArgumentException, NullPointerException {
+    if (!isCanonical(buffer)) throw new IllegalArgumentException("Not in canonical Base64 form");
+    final int start = buffer.position(), limit = buffer.limit();
+    int lines = 0;
+    for (int i = start; i < limit; i++) if (buffer.get(i) == '\n') lines++;
+    final byte[] bytes = new byte[limit - start + lines];
+    int length = 0;
+    for (int i = start; i < limit; i++) {
+      final byte b = buffer.get(i);
+      if (b == '\r') continue;
+      if (b == '\n') bytes[length++] = '\r';
+      bytes[length++] = b;
+    }
+    return ASCIICharSequence.wrap(bytes, 0, length);
+  }
+
+  /* Returns the value of a character of the Base64 alphabet, or -1. */
+  private static int value(final byte b) {
+    if (b >= 'A' && b <= 'Z') return b - 'A';
+    if (b >= 'a' && b <= 'z') return b - 'a' + 26;
+    if (b >= '0' && b <= '9') return b - '0' + 52;
+    if (b == '+') return 62;
+    if (b == '/') return 63;
+    return -1;
+  }
+
   /**
    * Decodes a <em>encoded-word</em> according to the RFC 2047.
    *
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A content-addressed store of blobs, shared by the boxes of a {@link Storage}, see {@link
+ * Storage#blobs()}.
+ *
+ * <p>Every distinct content is stored once, in the {@code .blobs} directory of the storage, under
+ * a <em>key</em> of the form {@code sha256:<hex digest of the content>} (see {@link
+ * #store(ASCIICharSequence)}). Entries refer to a blob by containing its <em>reference</em>, a line
+ * {@code @blob <key>} (see {@link #reference(String)}), and tell they do by starting with a
+ * <em>marker</em>, a header line {@code X-Mua-Blobs: <key> <key> ...} listing the keys of their
+ * references (see {@link #mark(ASCIICharSequence, List)}); the lines of entries that are not marked
+ * are never taken for references, and the headers of marked entries can be decoded without
+ * expanding them. Every blob has a count of the references stored to it: the blob is deleted when
+ * the count drops to zero (see {@link #release(String)}).
+ *
+ * <p>The most recently used blobs are kept in memory, up to {@link #CACHE_SIZE} bytes, so that
+ * entries referring to the same blob are expanded with a single read.
+ */
+public final class BlobStore {
+
+  /** The maximum number of bytes of the blobs kept in memory. */
+  public static final long CACHE_SIZE = 16 << 20;
+
+  private static final String REFERENCE_PREFIX = "@blob ";
+  private static final String MARKER = "X-Mua-Blobs: ";
+  private static final Pattern REFERENCE =
+      Pattern.compile("^@blob (sha256:[0-9a-f]{64})$", Pattern.MULTILINE);
+  private static final Pattern KEY = Pattern.compile("sha256:[0-9a-f]{64}");
+
+  private final Path dir;
+  private final Map<String, ASCIICharSequence> cache = new LinkedHashMap<>(16, .75f, true);
+  private long cached;
+
+  BlobStore(final Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Returns if no blob was ever stored in this store, that is if its directory does not exist; no
+   * entry can refer to such a store.
+   *
+   * @return if no blob was ever stored.
+   */
+  public boolean isEmpty() {
+    return !Files.isDirectory(dir);
+  }
+
+  /**
+   * Stores the given content, unless an equal one is already stored, and counts a new reference
+   * to it.
+   *
+   * @param content the content.
+   * @return the key of the blob, or {@code null} if some {@link IOException} occurs.
+   * @throws NullPointerException if the content is {@code null}.
+   */
+  public synchronized String store(final ASCIICharSequence content)
+      throws NullPointerException {
+    final byte[] bytes = content.sharedBytes();
+    final String key = "sha256:" + HexFormat.of().formatHex(sha256().digest(bytes));
+    try {
+      final Path path = path(key);
+      if (!Files.exists(path)) {
+        Files.createDirectories(path.getParent());
+        replace(path, bytes);
+      }
+      writeReferences(key, references(key) + 1);
+    } catch (IOException e) {
+      return null;
+    }
+    cache(key, content);
+    return key;
+  }
+
+  /**
+   * Returns the reference to a blob, to be contained in a {@link #mark(ASCIICharSequence, List)
+   * marked} entry.
+   *
+   * @param key the key of the blob.
+   * @return the reference, without the line terminator.
+   * @throws IllegalArgumentException if the key is not valid.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public static ASCIICharSequence reference(final String key)
+      throws IllegalArgumentException, NullPointerException {
+    checkKey(key);
+    return ASCIICharSequence.of(REFERENCE_PREFIX + key);
+  }
+
+  /**
+   * Marks the given content as containing the references to the given blobs.
+   *
+   * <p>Every line of the content starting with {@code @blob } must be one of such references, the
+   * ones that don't can be told by {@link #mayContainReferences(CharSequence)}.
+   *
+   * @param content the content, for example the one of an entry.
+   * @param keys the keys of the references contained in the content, in order of appearance.
+   * @return the marked content, the given one if there are no keys.
+   * @throws IllegalArgumentException if some key is not valid.
+   * @throws NullPointerException if the content, or the keys, are {@code null}.
+   */
+  public static ASCIICharSequence mark(final ASCIICharSequence content, final List<String> keys)
+      throws IllegalArgumentException, NullPointerException {
+    Objects.requireNonNull(content);
+    if (keys.isEmpty()) return content;
+    final StringBuilder marked = new StringBuilder(MARKER);
+    for (final String key : keys) marked.append(checkKey(key)).append(' ');
+    marked.setCharAt(marked.length() - 1, '\n');
+    return ASCIICharSequence.of(marked.append(content).toString());
+  }
+
+  /**
+   * Returns if the given bytes are {@link #mark(ASCIICharSequence, List) marked}; bytes for which
+   * this method returns {@code false} can be decoded without {@link #expand(ASCIICharSequence)
+   * expanding} them.
+   *
+   * @param bytes the bytes, for example the ones of an entry; their position is not changed.
+   * @return if the bytes start with the marker.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static boolean isMarked(final ByteBuffer bytes) throws NullPointerException {
+    if (bytes.remaining() < MARKER.length()) return false;
+    for (int i = 0; i < MARKER.length(); i++)
+      if (bytes.get(bytes.position() + i) != MARKER.charAt(i)) return false;
+    return true;
+  }
+
+  /**
+   * Returns the content of a blob.
+   *
+   * @param key the key of the blob.
+   * @return the content of the blob, or {@code null} if it does not exist or some {@link
+   *     IOException} occurs.
+   * @throws IllegalArgumentException if the key is not valid.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public synchronized ASCIICharSequence get(final String key)
+      throws IllegalArgumentException, NullPointerException {
+    ASCIICharSequence content = cache.get(key);
+    if (content != null) return content;
+    try {
+      content = ASCIICharSequence.of(Files.readAllBytes(path(key)));
+    } catch (IOException e) {
+      return null;
+    }
+    cache(key, content);
+    return content;
+  }
+
+  /**
+   * Returns the number of references to a blob.
+   *
+   * @param key the key of the blob.
+   * @return the number of references, {@code 0} if the blob does not exist.
+   * @throws IllegalArgumentException if the key is not valid.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public synchronized int references(final String key)
+      throws IllegalArgumentException, NullPointerException {
+    try {
+      return Integer.parseInt(
+          Files.readString(referencesPath(key), StandardCharsets.US_ASCII).trim());
+    } catch (IOException | NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Drops a reference to a blob, deleting the blob if it was the last one.
+   *
+   * @param key the key of the blob.
+   * @return if the reference was dropped, or if the blob does not exist or some {@link
+   *     IOException} occurs.
+   * @throws IllegalArgumentException if the key is not valid.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public synchronized boolean release(final String key)
+      throws IllegalArgumentException, NullPointerException {
+    final int references = references(key);
+    if (references == 0) return false;
+    try {
+      if (references > 1) writeReferences(key, references - 1);
+      else {
+        Files.delete(path(key));
+        Files.deleteIfExists(referencesPath(key));
+        final ASCIICharSequence content = cache.remove(key);
+        if (content != null) cached -= content.length();
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the keys of the blobs referred to in the given bytes, as listed by their marker.
+   *
+   * @param bytes the bytes, for example the ones of an entry; their position is not changed.
+   * @return the list of keys, empty if the bytes are not {@link #isMarked(ByteBuffer) marked}.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static List<String> keys(final ByteBuffer bytes) throws NullPointerException {
+    if (!isMarked(bytes)) return List.of();
+    final StringBuilder marker = new StringBuilder();
+    for (int i = bytes.position() + MARKER.length(); i < bytes.limit(); i++) {
+      final byte b = bytes.get(i);
+      if (b == '\n') break;
+      marker.append((char) b);
+    }
+    return keys(marker);
+  }
+
+  /**
+   * Returns if the given content may contain lines that would be taken for references, that is if
+   * some line starts with {@code @blob }; such a content can't be {@link #mark(ASCIICharSequence,
+   * List) marked}, unless every such line is a reference.
+   *
+   * @param content the content, for example the body of a message.
+   * @return if the content may contain references.
+   * @throws NullPointerException if the content is {@code null}.
+   */
+  public static boolean mayContainReferences(final CharSequence content)
+      throws NullPointerException {
+    final int limit = content.length() - REFERENCE_PREFIX.length();
+    for (int line = 0; line <= limit; line++) {
+      if (line > 0 && content.charAt(line - 1) != '\n') continue;
+      int i = 0;
+      while (i < REFERENCE_PREFIX.length()
+          && content.charAt(line + i) == REFERENCE_PREFIX.charAt(i)) i++;
+      if (i == REFERENCE_PREFIX.length()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Replaces every reference contained in the given content, if it is {@link
+   * #mark(ASCIICharSequence, List) marked}, with the content of its blob, and drops the marker.
+   *
+   * <p>References to blobs that do not exist (or can't be read) are left unchanged.
+   *
+   * @param content the content, for example the one of an entry.
+   * @return the expanded content, the given one if it is not marked.
+   * @throws NullPointerException if the content is {@code null}.
+   */
+  public ASCIICharSequence expand(final ASCIICharSequence content) throws NullPointerException {
+    final String text = content.toString();
+    if (!text.startsWith(MARKER)) return content;
+    final int start = text.indexOf('\n') + 1;
+    if (start == 0) return content;
+    final List<String> keys = keys(text.substring(MARKER.length(), start - 1));
+    final Matcher matcher = REFERENCE.matcher(text).region(start, text.length());
+    final StringBuilder expanded = new StringBuilder(text.length());
+    int copied = start;
+    while (matcher.find()) {
+      if (!keys.contains(matcher.group(1))) continue;
+      final ASCIICharSequence blob = get(matcher.group(1));
+      if (blob == null) continue;
+      expanded.append(text, copied, matcher.start()).append(blob);
+      copied = matcher.end();
+    }
+    expanded.append(text, copied, text.length());
+    return ASCIICharSequence.of(expanded.toString());
+  }
+
+  private static List<String> keys(final CharSequence marker) {
+    final List<String> keys = new ArrayList<>();
+    final Matcher matcher = KEY.matcher(marker);
+    while (matcher.find()) keys.add(matcher.group());
+    return keys;
+  }
+
+  private void cache(final String key, final ASCIICharSequence content) {
+    if (content.length() > CACHE_SIZE || cache.containsKey(key)) return;
+    cache.put(key, content);
+    cached += content.length();
+    final Iterator<ASCIICharSequence> eldest = cache.values().iterator();
+    while (cached > CACHE_SIZE) {
+      cached -= eldest.next().length();
+      eldest.remove();
+    }
+  }
+
+  private static String checkKey(final String key) {
+    if (!KEY.matcher(Objects.requireNonNull(key)).matches())
+      throw new IllegalArgumentException("Invalid key: " + key);
+    return key;
+  }
+
+  private Path path(final String key) {
+    checkKey(key);
+    final String hex = key.substring(key.indexOf(':') + 1);
+    return dir.resolve(hex.substring(0, 2)).resolve(hex);
+  }
+
+  private Path referencesPath(final String key) {
+    final Path path = path(key);
+    return path.resolveSibling(path.getFileName() + ".refs");
+  }
+
+  private void writeReferences(final String key, final int references) throws IOException {
+    replace(referencesPath(key), Integer.toString(references).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void replace(final Path path, final byte[] bytes) throws IOException {
+    final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(temp, bytes);
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("SHA-256 is available on every Java platform", e);
+    }
+  }
+}
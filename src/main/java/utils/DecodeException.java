@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+/**
+ * Thrown when an encoded mail message can't be decoded; it records where the problem was found.
+ */
+@SuppressWarnings("serial")
+public class DecodeException extends IllegalArgumentException {
+
+  private final long offset;
+
+  /**
+   * Constructs an exception with the given message and offset.
+   *
+   * @param message the message.
+   * @param offset the offset, in the encoded message, where the problem was found.
+   */
+  public DecodeException(final String message, final long offset) {
+    super(message);
+    this.offset = offset;
+  }
+
+  /**
+   * Returns where the problem was found: the offset of the offending byte, or of the start of the
+   * offending line or part.
+   *
+   * @return the offset, in the encoded message, where the problem was found.
+   */
+  public long offset() {
+    return offset;
+  }
+}
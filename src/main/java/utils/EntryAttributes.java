@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes of an entry that is not a file of its own.
+ *
+ * @param size the size of the entry, in bytes.
+ * @param time the time of the last modification of the entry, in milliseconds from the epoch.
+ */
+record EntryAttributes(long size, long time) implements BasicFileAttributes {
+  @Override
+  public FileTime lastModifiedTime() {
+    return FileTime.fromMillis(time);
+  }
+
+  @Override
+  public FileTime lastAccessTime() {
+    return lastModifiedTime();
+  }
+
+  @Override
+  public FileTime creationTime() {
+    return lastModifiedTime();
+  }
+
+  @Override
+  public boolean isRegularFile() {
+    return true;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return false;
+  }
+
+  @Override
+  public boolean isSymbolicLink() {
+    return false;
+  }
+
+  @Override
+  public boolean isOther() {
+    return false;
+  }
+
+  @Override
+  public Object fileKey() {
+    return null;
+  }
+}
@@ -6,12 +6,13 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Scanner;
 import java.util.stream.Collectors;
 
 /**
@@ -88,26 +89,14 @@ public class EntryEncoding {
 
   private EntryEncoding() {}
 
-  private static class RawBodyBuilder {
-
-    private final List<ASCIICharSequence> lines = new ArrayList<>();
-
-    private void add(final ASCIICharSequence line) {
-      lines.add(Objects.requireNonNull(line));
-    }
-
-    private ASCIICharSequence rawBody() {
-      return ASCIICharSequence.of(String.join("\n", lines));
-    }
-  }
-
-  private static class rawHeadersBuilder {
+  static class RawHeadersBuilder {
     private final Map<ASCIICharSequence, RawHeader> headers = new LinkedHashMap<>();
 
-    private final void add(final ASCIICharSequence line) {
-      final RawHeader dup, header = RawHeader.decode(line);
+    List<ASCIICharSequence> add(final String line, final long offset) {
+      final RawHeader dup, header = RawHeader.decode(line, offset);
       if ((dup = headers.put(header.name(), header)) != null)
-        throw new IllegalArgumentException("Duplicate header: [" + line + "] was [" + dup + "]");
+        throw new DecodeException("Duplicate header: [" + line + "] was [" + dup + "]", offset);
+      return header.rawHeader();
     }
 
     private String getLowerCaseValue(final String name) {
@@ -115,26 +104,23 @@ public class EntryEncoding {
       return header == null ? null : header.value().toString().toLowerCase();
     }
 
-    private List<List<ASCIICharSequence>> rawHeaders() {
+    List<List<ASCIICharSequence>> rawHeaders() {
       return List.copyOf(
           headers.values().stream().map(RawHeader::rawHeader).collect(Collectors.toList()));
     }
   }
 
   private record RawHeader(ASCIICharSequence name, ASCIICharSequence value) {
-    private RawHeader {
-      name = ASCIICharSequence.of(Objects.requireNonNull(name).toString().trim().toLowerCase());
-      value = ASCIICharSequence.of(Objects.requireNonNull(value).toString().trim());
-    }
-
     private List<ASCIICharSequence> rawHeader() {
       return List.of(name, value);
     }
 
-    private static RawHeader decode(final ASCIICharSequence line) {
-      final String[] parts = Objects.requireNonNull(line).toString().split(":", 2);
-      if (parts.length != 2) throw new IllegalArgumentException("Can't parse header: " + line);
-      return new RawHeader(ASCIICharSequence.of(parts[0]), ASCIICharSequence.of(parts[1]));
+    private static RawHeader decode(final String line, final long offset) {
+      final String[] parts = line.split(":", 2);
+      if (parts.length != 2) throw new DecodeException("Can't parse header: " + line, offset);
+      return new RawHeader(
+          ASCIICharSequence.of(parts[0].trim().toLowerCase()),
+          ASCIICharSequence.of(parts[1].trim()));
     }
   }
 
@@ -148,57 +134,237 @@ public class EntryEncoding {
    *
    * @param rawMessage the message.
    * @return a list of {@link Fragment fragments} representing the message.
+   * @throws DecodeException if the message can't be decoded.
+   */
+  public static List<Fragment> decode(final ASCIICharSequence rawMessage) throws DecodeException {
+    final byte[] bytes = rawMessage.sharedBytes();
+    return decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes a multipart encoded mail message, given its bytes.
+   *
+   * <p>The result is the same of {@link #decode(ASCIICharSequence)} for the sequence made of the
+   * given bytes, but the bytes are scanned directly: no intermediate copy of the message, or of its
+   * lines, is made. The bodies of the fragments are views of the bytes (see {@link
+   * Fragment#rawBodyBuffer()}), that hence must not be modified afterwards.
+   *
+   * @param bytes the bytes of the message.
+   * @return a list of {@link Fragment fragments} representing the message.
+   * @throws DecodeException if the bytes are not ASCII, or the message can't be decoded.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static List<Fragment> decode(final byte[] bytes)
+      throws DecodeException, NullPointerException {
+    return decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes a multipart encoded mail message, given a buffer of its bytes.
+   *
+   * <p>The message is made of the bytes between the position and the limit of the buffer, whose
+   * position is not changed; see {@link #decode(byte[])}. Buffers not backed by an accessible
+   * array (as the mapped, or read-only, ones) are copied once.
+   *
+   * @param buffer the buffer.
+   * @return a list of {@link Fragment fragments} representing the message.
+   * @throws DecodeException if the bytes are not ASCII, or the message can't be decoded.
+   * @throws NullPointerException if the buffer is {@code null}.
    */
-  public static List<Fragment> decode(final ASCIICharSequence rawMessage) {
-    List<Fragment> fragments = new ArrayList<>();
-    rawHeadersBuilder rawHeadersBuilder = new rawHeadersBuilder();
-    RawBodyBuilder rawBodyBuilder = new RawBodyBuilder();
-    ASCIICharSequence separator = null, lastSeparator = null;
-    enum Mode {
-      HEADERS,
-      BODY,
-      PART_BODY
+  public static List<Fragment> decode(final ByteBuffer buffer)
+      throws DecodeException, NullPointerException {
+    if (buffer.hasArray()) {
+      final int from = buffer.arrayOffset() + buffer.position();
+      return decode(buffer.array(), from, from + buffer.remaining());
     }
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(buffer.position(), bytes);
+    return decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes the top-level headers of a mail message, without decoding its body.
+   *
+   * <p>The message is scanned up to the first empty line, that ends the headers; the result is the
+   * same of {@link Fragment#rawHeaders()} for the first fragment returned by {@link
+   * #decode(ASCIICharSequence)}, but the body is neither scanned nor checked, so this method can
+   * succeed on messages whose body can't be decoded.
+   *
+   * @param rawMessage the message.
+   * @return the list of raw headers of the message, see {@link Fragment#rawHeaders()}.
+   * @throws DecodeException if the headers can't be decoded.
+   * @throws NullPointerException if the message is {@code null}.
+   */
+  public static List<List<ASCIICharSequence>> decodeHeaders(final ASCIICharSequence rawMessage)
+      throws DecodeException, NullPointerException {
+    final byte[] bytes = rawMessage.sharedBytes();
+    return decodeHeaders(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes the top-level headers of a mail message, given its bytes; see {@link
+   * #decodeHeaders(ASCIICharSequence)}.
+   *
+   * @param bytes the bytes of the message.
+   * @return the list of raw headers of the message, see {@link Fragment#rawHeaders()}.
+   * @throws DecodeException if the headers are not ASCII, or can't be decoded.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static List<List<ASCIICharSequence>> decodeHeaders(final byte[] bytes)
+      throws DecodeException, NullPointerException {
+    return decodeHeaders(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes the top-level headers of a mail message, given a buffer of its bytes; see {@link
+   * #decodeHeaders(ASCIICharSequence)}.
+   *
+   * <p>The message is made of the bytes between the position and the limit of the buffer, whose
+   * position is not changed. Buffers not backed by an accessible array have just their headers
+   * copied.
+   *
+   * @param buffer the buffer.
+   * @return the list of raw headers of the message, see {@link Fragment#rawHeaders()}.
+   * @throws DecodeException if the headers are not ASCII, or can't be decoded.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static List<List<ASCIICharSequence>> decodeHeaders(final ByteBuffer buffer)
+      throws DecodeException, NullPointerException {
+    if (buffer.hasArray()) {
+      final int from = buffer.arrayOffset() + buffer.position();
+      return decodeHeaders(buffer.array(), from, from + buffer.remaining());
+    }
+    final int start = buffer.position(), limit = buffer.limit();
+    int end = start;
+    boolean lineStart = true;
+    while (end < limit) {
+      final byte b = buffer.get(end++);
+      if (b == '\r' && end < limit && buffer.get(end) == '\n') end++;
+      if (b == '\r' || b == '\n') {
+        if (lineStart) break;
+        lineStart = true;
+      } else lineStart = false;
+    }
+    final byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return decodeHeaders(bytes, 0, bytes.length);
+  }
+
+  /* Scans the lines as decode does, up to the first empty one. */
+  private static List<List<ASCIICharSequence>> decodeHeaders(
+      final byte[] bytes, final int from, final int to) {
+    final RawHeadersBuilder rawHeadersBuilder = new RawHeadersBuilder();
+    int start = from;
+    while (start < to) {
+      final int end = LineScanner.lineEnd(bytes, start, to);
+      if (end < to && bytes[end] < 0)
+        throw new DecodeException("Non ASCII byte at " + (end - from), end - from);
+      if (start == end) break;
+      rawHeadersBuilder.add(
+          new String(bytes, start, end - start, StandardCharsets.US_ASCII), start - from);
+      start = end;
+      if (start < to)
+        start += bytes[start] == '\r' && start + 1 < to && bytes[start + 1] == '\n' ? 2 : 1;
+    }
+    return rawHeadersBuilder.rawHeaders();
+  }
+
+  enum Mode {
+    HEADERS,
+    BODY,
+    PART_BODY
+  }
+
+  /*
+   * Lines are terminated by \r\n, \n or \r, as for Scanner.nextLine; the body of a part is the
+   * range of bytes from the start of its first line to the end of its last one, that the fragment
+   * keeps as a view of bytes (replacing the line terminators in between by \n only if asked).
+   */
+  private static List<Fragment> decode(final byte[] bytes, final int from, final int to) {
+    final List<Fragment> fragments = new ArrayList<>();
+    RawHeadersBuilder rawHeadersBuilder = new RawHeadersBuilder();
+    byte[] separator = null;
+    int bodyStart = -1, bodyEnd = -1, partStart = from;
     Mode mode = Mode.HEADERS;
-    try (final Scanner s = new Scanner(rawMessage.toString())) {
-      while (s.hasNextLine()) {
-        final ASCIICharSequence line = ASCIICharSequence.of(s.nextLine());
-        switch (mode) {
-          case HEADERS:
-            if (line.isEmpty())
-              if (separator == null) {
-                final String contentType = rawHeadersBuilder.getLowerCaseValue("content-type");
-                if (contentType != null && contentType.startsWith("multipart/")) {
-                  final String[] p = contentType.split("boundary=", 2);
-                  if (p.length != 2)
-                    throw new IllegalArgumentException("Can't determine boundary: " + line);
-                  final String boundary = contentType.split("boundary=")[1];
-                  separator = ASCIICharSequence.of("--" + boundary);
-                  lastSeparator = ASCIICharSequence.of("--" + boundary + "--");
-                  mode = Mode.PART_BODY;
-                } else mode = Mode.BODY;
-              } else mode = Mode.PART_BODY;
-            else rawHeadersBuilder.add(line);
-            break;
-          case BODY:
-            rawBodyBuilder.add(line);
-            if (!s.hasNextLine()) {
-              fragments.add(new Fragment(rawHeadersBuilder.rawHeaders(), rawBodyBuilder.rawBody()));
-              rawHeadersBuilder = new rawHeadersBuilder();
-              rawBodyBuilder = new RawBodyBuilder();
-            }
-            break;
-          case PART_BODY:
-            if (line.equals(separator) || line.equals(lastSeparator)) {
-              fragments.add(new Fragment(rawHeadersBuilder.rawHeaders(), rawBodyBuilder.rawBody()));
-              rawHeadersBuilder = new rawHeadersBuilder();
-              rawBodyBuilder = new RawBodyBuilder();
-              mode = Mode.HEADERS;
-            } else rawBodyBuilder.add(line);
-            break;
-        }
+    int start = from;
+    while (start < to) {
+      final int end = LineScanner.lineEnd(bytes, start, to);
+      if (end < to && bytes[end] < 0)
+        throw new DecodeException("Non ASCII byte at " + (end - from), end - from);
+      int next = end;
+      if (next < to)
+        next += bytes[next] == '\r' && next + 1 < to && bytes[next + 1] == '\n' ? 2 : 1;
+      switch (mode) {
+        case HEADERS:
+          if (start == end)
+            if (separator == null) {
+              separator = separator(rawHeadersBuilder, start - from);
+              mode = separator == null ? Mode.BODY : Mode.PART_BODY;
+            } else mode = Mode.PART_BODY;
+          else
+            rawHeadersBuilder.add(
+                new String(bytes, start, end - start, StandardCharsets.US_ASCII), start - from);
+          break;
+        case BODY:
+          if (bodyStart < 0) bodyStart = start;
+          bodyEnd = end;
+          if (next >= to) {
+            fragments.add(fragment(rawHeadersBuilder, partStart - from, bytes, bodyStart, bodyEnd));
+            rawHeadersBuilder = new RawHeadersBuilder();
+            bodyStart = bodyEnd = -1;
+          }
+          break;
+        case PART_BODY:
+          if (isSeparator(bytes, start, end, separator)) {
+            fragments.add(fragment(rawHeadersBuilder, partStart - from, bytes, bodyStart, bodyEnd));
+            rawHeadersBuilder = new RawHeadersBuilder();
+            bodyStart = bodyEnd = -1;
+            partStart = next;
+            mode = Mode.HEADERS;
+          } else {
+            if (bodyStart < 0) bodyStart = start;
+            bodyEnd = end;
+          }
+          break;
       }
+      start = next;
     }
     return fragments;
   }
+
+  /*
+   * Returns the separator of the parts of a message, given its top-level headers (ended by the
+   * empty line at offset), or null if the message is not multipart.
+   */
+  static byte[] separator(final RawHeadersBuilder rawHeadersBuilder, final long offset) {
+    final String contentType = rawHeadersBuilder.getLowerCaseValue("content-type");
+    if (contentType == null || !contentType.startsWith("multipart/")) return null;
+    final String[] p = contentType.split("boundary=", 2);
+    if (p.length != 2) throw new DecodeException("Can't determine boundary: ", offset);
+    final String boundary = contentType.split("boundary=")[1];
+    return ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /* Returns if the line is the separator, or the last separator (the separator followed by --). */
+  static boolean isSeparator(
+      final byte[] bytes, final int start, final int end, final byte[] separator) {
+    final int length = end - start;
+    if (length != separator.length && length != separator.length + 2) return false;
+    if (!Arrays.equals(bytes, start, start + separator.length, separator, 0, separator.length))
+      return false;
+    return length == separator.length || bytes[end - 2] == '-' && bytes[end - 1] == '-';
+  }
+
+  /* Returns the fragment of a part, whose body is empty if start is negative. */
+  private static Fragment fragment(
+      final RawHeadersBuilder builder,
+      final int offset,
+      final byte[] bytes,
+      final int start,
+      final int end) {
+    return start < 0
+        ? new Fragment(builder.rawHeaders(), offset, bytes, 0, 0)
+        : new Fragment(builder.rawHeaders(), offset, bytes, start, end);
+  }
+
 }
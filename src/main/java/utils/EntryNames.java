@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The generator of the names of new entries.
+ *
+ * <p>A name is made of three groups of hexadecimal digits: the time of creation (12 digits, in
+ * milliseconds from the epoch), a counter distinguishing the names generated in the same
+ * millisecond (4 digits) and a random node identifier chosen once per process (6 digits), as in
+ * {@code 018c4f2a9b31-0000-3fa2c1}. Names are strictly increasing within a process, even if the
+ * clock goes back, so that the lexicographic order of the names is the order of creation of the
+ * entries.
+ *
+ * <p>Entries whose names were not generated here (such as the ones of older versions, or copied
+ * from elsewhere) are put in order with the others by their last modified time, see {@link
+ * #BY_CREATION}.
+ */
+final class EntryNames {
+
+  private static final int MAX_COUNTER = 0xffff;
+  private static final int NODE = ThreadLocalRandom.current().nextInt(1 << 24);
+  private static final HexFormat HEX = HexFormat.of();
+
+  /**
+   * Orders entries by time of creation, see {@link #time(Store.Entry)}, and then by name; entries
+   * whose names were generated here are thus in the order of their names.
+   */
+  static final Comparator<Store.Entry> BY_CREATION =
+      Comparator.comparingLong(EntryNames::time).thenComparing(Store.Entry::toString);
+
+  private static long last;
+  private static int counter;
+
+  private EntryNames() {}
+
+  /**
+   * Returns a new name, greater than every name previously returned.
+   *
+   * @return the name.
+   */
+  static synchronized String next() {
+    final long now = System.currentTimeMillis();
+    if (now > last) {
+      last = now;
+      counter = 0;
+    } else if (++counter > MAX_COUNTER) {
+      last++;
+      counter = 0;
+    }
+    return new StringBuilder(23)
+        .append(HEX.toHexDigits(last), 4, 16)
+        .append('-')
+        .append(HEX.toHexDigits((short) counter))
+        .append('-')
+        .append(HEX.toHexDigits(NODE), 2, 8)
+        .toString();
+  }
+
+  /**
+   * Returns the time of creation of an entry: the one of its name, if it was generated by {@link
+   * #next()}, otherwise its last modified time.
+   *
+   * @param entry the entry.
+   * @return the time, in milliseconds from the epoch, {@code 0} if it can't be known.
+   */
+  static long time(final Store.Entry entry) {
+    final String name = entry.toString();
+    if (isGenerated(name)) return HexFormat.fromHexDigitsToLong(name, 0, 12);
+    final BasicFileAttributes attributes = entry.attributes();
+    return attributes == null ? 0 : attributes.lastModifiedTime().toMillis();
+  }
+
+  private static boolean isGenerated(final String name) {
+    if (name.length() != 23) return false;
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (i == 12 || i == 17 ? c != '-' : !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f'))
+        return false;
+    }
+    return true;
+  }
+}
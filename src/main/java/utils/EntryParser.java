@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An incremental parser of multipart encoded mail messages, to which the message is pushed in
+ * chunks as it arrives.
+ *
+ * <p>The parser decodes messages as {@link EntryEncoding#decode(ASCIICharSequence)} does, but
+ * instead of returning a list of {@link Fragment fragments} it notifies a {@link Listener} of the
+ * start of every part, of its headers, of the chunks of its body and of its end. The chunks of a
+ * body, concatenated, are the {@link Fragment#rawBody()} of the corresponding fragment; the parts
+ * whose end is notified correspond, in order, to the fragments returned by {@link
+ * EntryEncoding#decode(ASCIICharSequence)}. A part whose end is not notified before {@link
+ * #finish()} returns (such as a part lacking its closing separator) is dropped by {@link
+ * EntryEncoding#decode(ASCIICharSequence)}.
+ *
+ * <p>The memory used by the parser doesn't depend on the size of the message, nor on the size of
+ * the chunks: body lines are passed on as soon as they can't be a separator, and only the header
+ * line being parsed is kept whole.
+ *
+ * <p>A parser is meant to be used by a single thread; once it throws an exception, it must not be
+ * used anymore.
+ */
+public final class EntryParser {
+
+  /** The size of the buffer through which the body chunks are passed to the listener. */
+  public static final int BODY_BUFFER_SIZE = 8 << 10;
+
+  private static final byte[] NEWLINE = {'\n'};
+
+  /** A listener of the events of an {@link EntryParser}. */
+  public interface Listener {
+    /** Called when a part starts, that is before its first header. */
+    void partStarted();
+
+    /**
+     * Called for every header of the current part.
+     *
+     * @param name the name of the header, in lower case.
+     * @param value the value of the header.
+     */
+    void header(ASCIICharSequence name, ASCIICharSequence value);
+
+    /**
+     * Called with a chunk of the body of the current part.
+     *
+     * @param chunk a read-only buffer with the bytes of the chunk, valid only during the call.
+     */
+    void body(ByteBuffer chunk);
+
+    /** Called when the current part ends. */
+    void partEnded();
+  }
+
+  private final Listener listener;
+  private EntryEncoding.RawHeadersBuilder rawHeadersBuilder =
+      new EntryEncoding.RawHeadersBuilder();
+  private EntryEncoding.Mode mode = EntryEncoding.Mode.HEADERS;
+  private byte[] separator;
+  private boolean inPart, bodyStarted, finished;
+
+  private byte[] line = new byte[128];
+  private int lineLength;
+  private boolean lineStarted, lineStreamed, afterCarriageReturn;
+  private long offset, lineOffset;
+
+  private final byte[] body = new byte[BODY_BUFFER_SIZE];
+  private int bodyLength;
+  private byte[] scratch;
+
+  /**
+   * Constructs a parser notifying the given listener.
+   *
+   * @param listener the listener.
+   * @throws NullPointerException if the listener is {@code null}.
+   */
+  public EntryParser(final Listener listener) throws NullPointerException {
+    this.listener = Objects.requireNonNull(listener);
+  }
+
+  /**
+   * Parses the next chunk of the message.
+   *
+   * <p>The bytes between the position and the limit of the buffer are parsed, and the position is
+   * moved to the limit; the buffer is not referenced once the method returns.
+   *
+   * @param chunk the chunk.
+   * @throws DecodeException if the chunk contains non ASCII bytes, or the message can't be decoded;
+   *     its offset is counted from the start of the message.
+   * @throws IllegalStateException if the parser is finished.
+   * @throws NullPointerException if the chunk is {@code null}.
+   */
+  public void feed(final ByteBuffer chunk)
+      throws DecodeException, IllegalStateException, NullPointerException {
+    Objects.requireNonNull(chunk);
+    if (finished) throw new IllegalStateException("The parser is finished");
+    if (chunk.hasArray()) {
+      final int from = chunk.arrayOffset() + chunk.position();
+      feed(chunk.array(), from, from + chunk.remaining());
+      chunk.position(chunk.limit());
+    } else {
+      if (scratch == null) scratch = new byte[BODY_BUFFER_SIZE];
+      while (chunk.hasRemaining()) {
+        final int length = Math.min(scratch.length, chunk.remaining());
+        chunk.get(scratch, 0, length);
+        feed(scratch, 0, length);
+      }
+    }
+    flushBody();
+  }
+
+  /**
+   * Signals that the message is complete, notifying the end of the last part if the message is not
+   * multipart.
+   *
+   * @throws DecodeException if the message can't be decoded.
+   */
+  public void finish() throws DecodeException {
+    if (finished) return;
+    finished = true;
+    if (lineStarted) lineEnded();
+    flushBody();
+    if (mode == EntryEncoding.Mode.BODY && bodyStarted) listener.partEnded();
+  }
+
+  private void feed(final byte[] bytes, final int from, final int to) {
+    int start = from;
+    if (afterCarriageReturn && start < to) {
+      afterCarriageReturn = false;
+      if (bytes[start] == '\n') start++;
+    }
+    while (start < to) {
+      final int end = LineScanner.lineEnd(bytes, start, to);
+      if (end < to && bytes[end] < 0) {
+        final long position = offset + end - from;
+        throw new DecodeException("Non ASCII byte at " + position, position);
+      }
+      if (end > start || end < to) startLine(offset + start - from);
+      if (end > start) lineData(bytes, start, end);
+      if (end == to) break;
+      lineEnded();
+      start = end + 1;
+      if (bytes[end] == '\r')
+        if (start == to) afterCarriageReturn = true;
+        else if (bytes[start] == '\n') start++;
+    }
+    offset += to - from;
+  }
+
+  private void startLine(final long lineOffset) {
+    if (lineStarted) return;
+    lineStarted = true;
+    this.lineOffset = lineOffset;
+    if (mode == EntryEncoding.Mode.HEADERS && !inPart) {
+      inPart = true;
+      listener.partStarted();
+    }
+  }
+
+  private void lineData(final byte[] bytes, final int from, final int to) {
+    if (lineStreamed) {
+      appendBody(bytes, from, to);
+      return;
+    }
+    if (mode == EntryEncoding.Mode.BODY) {
+      startBodyLine();
+      lineStreamed = true;
+      appendBody(bytes, from, to);
+      return;
+    }
+    appendLine(bytes, from, to);
+    if (mode == EntryEncoding.Mode.PART_BODY && lineLength > separator.length + 2) {
+      startBodyLine();
+      lineStreamed = true;
+      appendBody(line, 0, lineLength);
+      lineLength = 0;
+    }
+  }
+
+  private void lineEnded() {
+    switch (mode) {
+      case HEADERS:
+        if (lineLength == 0)
+          if (separator == null) {
+            separator = EntryEncoding.separator(rawHeadersBuilder, lineOffset);
+            mode = separator == null ? EntryEncoding.Mode.BODY : EntryEncoding.Mode.PART_BODY;
+          } else mode = EntryEncoding.Mode.PART_BODY;
+        else {
+          final List<ASCIICharSequence> rawHeader =
+              rawHeadersBuilder.add(
+                  new String(line, 0, lineLength, StandardCharsets.US_ASCII), lineOffset);
+          listener.header(rawHeader.get(0), rawHeader.get(1));
+        }
+        break;
+      case BODY:
+        if (!lineStreamed) startBodyLine();
+        break;
+      case PART_BODY:
+        if (lineStreamed) break;
+        if (EntryEncoding.isSeparator(line, 0, lineLength, separator)) {
+          flushBody();
+          listener.partEnded();
+          rawHeadersBuilder = new EntryEncoding.RawHeadersBuilder();
+          inPart = bodyStarted = false;
+          mode = EntryEncoding.Mode.HEADERS;
+        } else {
+          startBodyLine();
+          appendBody(line, 0, lineLength);
+        }
+        break;
+    }
+    lineLength = 0;
+    lineStarted = lineStreamed = false;
+  }
+
+  /* Appends the terminator of the previous line of the body, if any. */
+  private void startBodyLine() {
+    if (bodyStarted) appendBody(NEWLINE, 0, 1);
+    bodyStarted = true;
+  }
+
+  private void appendLine(final byte[] bytes, final int from, final int to) {
+    if (lineLength + to - from > line.length)
+      line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + to - from));
+    System.arraycopy(bytes, from, line, lineLength, to - from);
+    lineLength += to - from;
+  }
+
+  private void appendBody(final byte[] bytes, int from, final int to) {
+    while (from < to) {
+      if (bodyLength == body.length) flushBody();
+      final int length = Math.min(to - from, body.length - bodyLength);
+      System.arraycopy(bytes, from, body, bodyLength, length);
+      bodyLength += length;
+      from += length;
+    }
+  }
+
+  private void flushBody() {
+    if (bodyLength == 0) return;
+    listener.body(ByteBuffer.wrap(body, 0, bodyLength).slice().asReadOnlyBuffer());
+    bodyLength = 0;
+  }
+}
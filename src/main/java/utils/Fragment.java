@@ -6,32 +6,77 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Objects;
 
 /**
  * A representation of a <em>part</em> of a multipart email message.
  *
+ * <p>The body of the part is not copied out of the message it was decoded from: the fragment keeps
+ * the range of the bytes of the message where the body lies, see {@link #rawBodyBuffer()}, and
+ * builds a standalone {@link ASCIICharSequence} only when {@link #rawBody()} is called.
+ *
  * <p>For an example see {@link utils.EntryEncoding}.
  */
 public class Fragment {
   private final List<List<ASCIICharSequence>> rawHeaders;
-  private final ASCIICharSequence rawBody;
+  private final int offset;
+  private final byte[] source;
+  private final int start, end;
+  private volatile ASCIICharSequence rawBody;
 
-  Fragment(List<List<ASCIICharSequence>> rawHeaders, ASCIICharSequence rawBody) {
-    this.rawBody = Objects.requireNonNull(rawBody);
+  Fragment(
+      final List<List<ASCIICharSequence>> rawHeaders,
+      final int offset,
+      final byte[] source,
+      final int start,
+      final int end) {
     this.rawHeaders = Objects.requireNonNull(rawHeaders);
+    this.offset = offset;
+    this.source = Objects.requireNonNull(source);
+    Objects.checkFromToIndex(start, end, source.length);
+    this.start = start;
+    this.end = end;
   }
 
   /**
    * Returns the (possibly Base64 encoded) body of the part.
    *
+   * <p>The lines of the body are terminated by {@code \n}, whatever their terminators in the
+   * message. The sequence is built at the first call.
+   *
    * @return the raw body of the part.
    */
   public ASCIICharSequence rawBody() {
+    ASCIICharSequence rawBody = this.rawBody;
+    if (rawBody == null) this.rawBody = rawBody = body();
     return rawBody;
   }
 
+  /**
+   * Returns a read-only view of the bytes of the (possibly Base64 encoded) body of the part.
+   *
+   * <p>The view shares the bytes of the message the part was decoded from, so no copy is made;
+   * differently from {@link #rawBody()}, the lines of the body keep the terminators ({@code \r\n},
+   * {@code \n} or {@code \r}) they have in the message.
+   *
+   * @return a read-only buffer of the bytes of the raw body of the part.
+   */
+  public ByteBuffer rawBodyBuffer() {
+    return ByteBuffer.wrap(source, start, end - start).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the offset of the part in the message it was decoded from, that is the offset of the
+   * first byte of its headers.
+   *
+   * @return the offset of the part.
+   */
+  public int offset() {
+    return offset;
+  }
+
   /**
    * Returns a list of raw headers found in the part.
    *
@@ -50,7 +95,24 @@ public class Fragment {
   public String toString() {
     final StringBuilder sb = new StringBuilder("Fragment\nRaw headers:\n");
     rawHeaders.forEach(h -> sb.append(String.format("%s: %s\n", h.get(0), h.get(1))));
-    sb.append("Raw body: \n" + rawBody);
+    sb.append("Raw body: \n" + rawBody());
     return sb.toString();
   }
+
+  /*
+   * Returns the body as a view of the message if its line terminators are \n, or else copies it out
+   * of the message, replacing its line terminators with \n.
+   */
+  private ASCIICharSequence body() {
+    int carriageReturn = start;
+    while (carriageReturn < end && source[carriageReturn] != '\r') carriageReturn++;
+    if (carriageReturn == end) return ASCIICharSequence.wrap(source, start, end);
+    final byte[] body = new byte[end - start];
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      if (source[i] == '\r' && i + 1 < end && source[i + 1] == '\n') continue;
+      body[length++] = source[i] == '\r' ? (byte) '\n' : source[i];
+    }
+    return ASCIICharSequence.wrap(body, 0, length);
+  }
 }
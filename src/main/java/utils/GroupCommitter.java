@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The durable write path of a {@link Storage}, see {@link Storage.Box#entryAsync}.
+ *
+ * <p>Submitted entries are queued and written by a single background thread, which takes every
+ * entry queued so far (up to {@link #MAX_GROUP} entries) as a <em>group</em>: the entries of the
+ * group are written, then every box touched by the group is synced once, and only then the futures
+ * of the entries of the group are completed. Under load, many entries thus share the cost of a
+ * single round of {@code fsync} calls.
+ */
+final class GroupCommitter {
+
+  /** The maximum number of entries committed together. */
+  static final int MAX_GROUP = 1024;
+
+  private record Pending(
+      Storage.Box box, String name, byte[] bytes, CompletableFuture<Storage.Box.Entry> future) {}
+
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+  GroupCommitter(final String name) {
+    final Thread thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  CompletableFuture<Storage.Box.Entry> submit(
+      final Storage.Box box, final String name, final byte[] bytes) {
+    final CompletableFuture<Storage.Box.Entry> future = new CompletableFuture<>();
+    queue.add(new Pending(box, name, bytes, future));
+    return future;
+  }
+
+  private void run() {
+    final List<Pending> group = new ArrayList<>(MAX_GROUP);
+    while (true) {
+      try {
+        group.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(group, MAX_GROUP - 1);
+      commit(group);
+      group.clear();
+    }
+  }
+
+  private static void commit(final List<Pending> group) {
+    final Map<Storage.Box, List<Pending>> written = new LinkedHashMap<>();
+    final Map<Pending, Storage.Box.Entry> entries = new LinkedHashMap<>();
+    for (Pending pending : group)
+      try {
+        entries.put(pending, pending.box().write(pending.name(), pending.bytes()));
+        written.computeIfAbsent(pending.box(), b -> new ArrayList<>()).add(pending);
+      } catch (IOException | RuntimeException e) {
+        pending.future().completeExceptionally(e);
+      }
+    for (Map.Entry<Storage.Box, List<Pending>> box : written.entrySet()) {
+      final List<String> names = new ArrayList<>();
+      for (Pending pending : box.getValue()) names.add(pending.name());
+      try {
+        box.getKey().sync(names);
+        for (Pending pending : box.getValue()) pending.future().complete(entries.get(pending));
+      } catch (IOException | RuntimeException e) {
+        for (Pending pending : box.getValue()) pending.future().completeExceptionally(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the ends of the lines of a sequence of bytes, eight bytes at a time.
+ *
+ * <p>Every {@code long} read from the bytes is checked at once for {@code \n}, {@code \r} and non
+ * ASCII bytes with the usual <em>SIMD within a register</em> tricks; the bytes that don't fill a
+ * whole {@code long} are checked one at a time, as {@link #lineEndScalar(byte[], int, int)} does.
+ */
+final class LineScanner {
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGHS = 0x8080808080808080L;
+  private static final long LFS = '\n' * ONES;
+  private static final long CRS = '\r' * ONES;
+
+  private LineScanner() {}
+
+  /**
+   * Returns the index of the first line terminator, or non ASCII byte, in a range of bytes.
+   *
+   * @param bytes the bytes.
+   * @param from the start of the range (inclusive).
+   * @param to the end of the range (exclusive).
+   * @return the index of the first {@code \n}, {@code \r} or negative byte in the range, or {@code
+   *     to} if there is none.
+   */
+  static int lineEnd(final byte[] bytes, final int from, final int to) {
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES) {
+      final long word = (long) LONGS.get(bytes, i);
+      final long found = zeros(word ^ LFS) | zeros(word ^ CRS) | word & HIGHS;
+      if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+    }
+    return lineEndScalar(bytes, i, to);
+  }
+
+  /**
+   * Returns the same of {@link #lineEnd(byte[], int, int)}, checking one byte at a time.
+   *
+   * @param bytes the bytes.
+   * @param from the start of the range (inclusive).
+   * @param to the end of the range (exclusive).
+   * @return the index of the first {@code \n}, {@code \r} or negative byte in the range, or {@code
+   *     to} if there is none.
+   */
+  static int lineEndScalar(final byte[] bytes, final int from, final int to) {
+    int i = from;
+    while (i < to && bytes[i] >= 0 && bytes[i] != '\n' && bytes[i] != '\r') i++;
+    return i;
+  }
+
+  /*
+   * Sets the high bit of the bytes of word that are zero; the lowest one set is exact, since false
+   * positives are due to borrows, which only propagate upwards from a zero byte.
+   */
+  private static long zeros(final long word) {
+    return (word - ONES) & ~word & HIGHS;
+  }
+}
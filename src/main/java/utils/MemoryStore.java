@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * A {@link Store} keeping boxes, entries and sidecars on the heap.
+ *
+ * <p>Nothing is read from or written to the filesystem, so this store is useful to exercise the
+ * clients of a store (for instance, to measure the cost of parsing messages) without the cost and
+ * the noise of I/O. The store is initially made of the (empty) root box only; see {@link
+ * #copyOf(Store)} to start from the content of another store.
+ */
+public final class MemoryStore implements Store {
+
+  private final Map<String, Box> boxes = new TreeMap<>();
+
+  /** Creates an empty store, containing only the root box. */
+  public MemoryStore() {
+    boxes.put("", new Box(""));
+  }
+
+  /**
+   * Creates a store with the same boxes and entries of the given store.
+   *
+   * <p>Entries keep their name and last modified time; references to the blob store of the given
+   * store (if any) are expanded. Sidecars are not copied.
+   *
+   * @param source the store to copy.
+   * @return the copy.
+   * @throws NullPointerException if the store is {@code null}.
+   * @throws IllegalArgumentException if some entry of the store can't be read, or contains non
+   *     ASCII bytes.
+   */
+  public static MemoryStore copyOf(final Store source)
+      throws NullPointerException, IllegalArgumentException {
+    final MemoryStore copy = new MemoryStore();
+    for (Store.Box box : source.boxes()) {
+      final Box copied = copy.boxes.computeIfAbsent(path(box), p -> copy.new Box(p));
+      for (Store.Entry entry : box.entries())
+        copied.put(entry.toString(), content(source, entry), time(entry));
+    }
+    return copy;
+  }
+
+  private static String path(final Store.Box box) {
+    final String name = box.toString();
+    return name.equals("INBOX") ? "" : name;
+  }
+
+  static byte[] content(final Store source, final Store.Entry entry)
+      throws IllegalArgumentException {
+    ASCIICharSequence content = entry.content();
+    if (content == null) throw new IllegalArgumentException("Can't read entry: " + entry);
+    if (source.blobs() != null) content = source.blobs().expand(content);
+    return content.sharedBytes();
+  }
+
+  static long time(final Store.Entry entry) {
+    final BasicFileAttributes attributes = entry.attributes();
+    if (attributes == null) return System.currentTimeMillis();
+    return attributes.lastModifiedTime().toMillis();
+  }
+
+  static String checkName(final String name) throws IllegalArgumentException {
+    if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
+    if (name.contains(File.separator)) throw new IllegalArgumentException();
+    return name;
+  }
+
+  /** A box of a {@link MemoryStore}. */
+  public final class Box implements Store.Box {
+
+    /** An entry of a {@link MemoryStore}. */
+    public final class Entry implements Store.Entry {
+      private final String name;
+      private final byte[] bytes;
+      private final long time;
+
+      private Entry(final String name, final byte[] bytes, final long time) {
+        this.name = name;
+        this.bytes = bytes;
+        this.time = time;
+      }
+
+      @Override
+      public ASCIICharSequence content() throws IllegalArgumentException {
+        return ASCIICharSequence.wrap(bytes, 0, bytes.length);
+      }
+
+      @Override
+      public ByteBuffer bytes() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+      }
+
+      @Override
+      public BasicFileAttributes attributes() {
+        return new EntryAttributes(bytes.length, time);
+      }
+
+      @Override
+      public boolean delete() {
+        synchronized (MemoryStore.this) {
+          return entries.remove(name, this);
+        }
+      }
+
+      @Override
+      public Box box() {
+        return Box.this;
+      }
+
+      @Override
+      public String toString() {
+        return name;
+      }
+    }
+
+    private final String path;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private final Map<String, byte[]> sidecars = new HashMap<>();
+
+    private Box(final String path) {
+      this.path = path;
+    }
+
+    private Entry put(final String name, final byte[] bytes, final long time) {
+      final Entry entry = new Entry(name, bytes, time);
+      entries.put(name, entry);
+      return entry;
+    }
+
+    @Override
+    public List<Entry> entries() {
+      synchronized (MemoryStore.this) {
+        return List.copyOf(entries.values());
+      }
+    }
+
+    @Override
+    public Entry entry(final ASCIICharSequence content) throws NullPointerException {
+      final byte[] bytes = content.sharedBytes();
+      synchronized (MemoryStore.this) {
+        if (boxes.get(path) != this) return null;
+        return put(EntryNames.next(), bytes, System.currentTimeMillis());
+      }
+    }
+
+    @Override
+    public Box box(final String name) throws IllegalArgumentException, NullPointerException {
+      final String child = path.isEmpty() ? checkName(name) : path + ":" + checkName(name);
+      synchronized (MemoryStore.this) {
+        if (boxes.get(path) != this || boxes.containsKey(child)) return null;
+        final Box box = new Box(child);
+        boxes.put(child, box);
+        return box;
+      }
+    }
+
+    @Override
+    public boolean delete() {
+      synchronized (MemoryStore.this) {
+        if (path.isEmpty() || !entries.isEmpty()) return false;
+        for (String other : boxes.keySet()) if (other.startsWith(path + ":")) return false;
+        return boxes.remove(path, this);
+      }
+    }
+
+    @Override
+    public ASCIICharSequence sidecar(final String name)
+        throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      synchronized (MemoryStore.this) {
+        final byte[] content = sidecars.get(name);
+        return content == null ? null : ASCIICharSequence.wrap(content, 0, content.length);
+      }
+    }
+
+    @Override
+    public boolean sidecar(final String name, final ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      final byte[] bytes = content.sharedBytes();
+      synchronized (MemoryStore.this) {
+        sidecars.put(name, bytes);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean appendSidecar(final String name, final ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      final byte[] bytes = content.sharedBytes();
+      synchronized (MemoryStore.this) {
+        final byte[] old = sidecars.getOrDefault(name, new byte[0]);
+        final byte[] appended = new byte[old.length + bytes.length];
+        System.arraycopy(old, 0, appended, 0, old.length);
+        System.arraycopy(bytes, 0, appended, old.length, bytes.length);
+        sidecars.put(name, appended);
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return path.isEmpty() ? "INBOX" : path;
+    }
+  }
+
+  @Override
+  public synchronized List<Box> boxes() {
+    final List<Box> sorted = new ArrayList<>(boxes.values());
+    sorted.sort((b1, b2) -> b1.toString().compareTo(b2.toString()));
+    return sorted;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryStore";
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The entries of a box stored according to {@link Storage.Layout#SEGMENTS}.
+ *
+ * <p>The content of the entries is appended to <em>segment</em> files, named {@code
+ * .segment-<n>}; a new segment is started once the current one exceeds {@link #SEGMENT_SIZE}
+ * bytes. The position of every entry is recorded in the {@code .segments} index, a log of lines
+ * of the form {@code + name segment offset length time} (for additions) and {@code - name} (for
+ * deletions, or <em>tombstones</em>). Once the deleted bytes exceed a fraction of the stored ones,
+ * a background task rewrites the live entries in new segments and replaces the index, holding the
+ * lock of the store only to start and to conclude the rewrite.
+ */
+final class SegmentStore {
+
+  /** The size (in bytes) above which a new segment is started. */
+  static final long SEGMENT_SIZE = 64 << 20;
+
+  private static final String INDEX = ".segments";
+  private static final String SEGMENT_PREFIX = ".segment-";
+  private static final String COPY_PREFIX = ".compacting-";
+  private static final long COMPACTION_MIN_DEAD = 1 << 20;
+
+  private static final ExecutorService COMPACTOR =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            final Thread thread = new Thread(r, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private record Location(int segment, long offset, int length, long time) {}
+
+  private final Path dir;
+  private final long mapThreshold;
+  private TreeMap<String, Location> index;
+  private int activeSegment;
+  private long activeSize, storedBytes, deadBytes;
+  private boolean compactionScheduled, compacting;
+  private final Set<Integer> unsynced = new HashSet<>();
+
+  SegmentStore(final Path dir, final long mapThreshold) {
+    this.dir = dir;
+    this.mapThreshold = mapThreshold;
+  }
+
+  private Path segment(final int number) {
+    return dir.resolve(SEGMENT_PREFIX + number);
+  }
+
+  private void load() throws IOException {
+    if (index != null) return;
+    final TreeMap<String, Location> index = new TreeMap<>();
+    long dead = 0;
+    final Path indexPath = dir.resolve(INDEX);
+    if (Files.exists(indexPath))
+      for (String line : Files.readAllLines(indexPath, StandardCharsets.US_ASCII)) {
+        final Location removed;
+        if (line.startsWith("- ")) removed = index.remove(line.substring(2));
+        else {
+          final String[] parts = line.substring(Math.min(2, line.length())).split(" ");
+          if (!line.startsWith("+ ") || parts.length != 5) continue; // a torn last line
+          final Location location;
+          try {
+            location =
+                new Location(
+                    Integer.parseInt(parts[1]),
+                    Long.parseLong(parts[2]),
+                    Integer.parseInt(parts[3]),
+                    Long.parseLong(parts[4]));
+          } catch (NumberFormatException e) {
+            continue;
+          }
+          removed = index.put(parts[0], location);
+        }
+        if (removed != null) dead += removed.length();
+      }
+    int active = 0;
+    long stored = 0, activeSize = 0;
+    try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*")) {
+      for (Path segment : segments) {
+        final int number =
+            Integer.parseInt(segment.getFileName().toString().substring(SEGMENT_PREFIX.length()));
+        final long size = Files.size(segment);
+        stored += size;
+        if (number >= active) {
+          active = number;
+          activeSize = size;
+        }
+      }
+    }
+    this.index = index;
+    this.activeSegment = active;
+    this.activeSize = activeSize;
+    this.storedBytes = stored;
+    this.deadBytes = dead;
+  }
+
+  synchronized List<String> names() throws IOException {
+    load();
+    return new ArrayList<>(index.keySet());
+  }
+
+  synchronized boolean contains(final String name) throws IOException {
+    load();
+    return index.containsKey(name);
+  }
+
+  synchronized ByteBuffer read(final String name) throws IOException {
+    load();
+    final Location location = index.get(name);
+    if (location == null) throw new NoSuchFileException(dir.resolve(name).toString());
+    try (FileChannel channel =
+        FileChannel.open(segment(location.segment()), StandardOpenOption.READ)) {
+      if (location.length() >= mapThreshold)
+        return channel.map(FileChannel.MapMode.READ_ONLY, location.offset(), location.length());
+      final ByteBuffer buffer = ByteBuffer.allocate(location.length());
+      while (buffer.hasRemaining())
+        if (channel.read(buffer, location.offset() + buffer.position()) < 0) break;
+      return buffer.flip();
+    }
+  }
+
+  synchronized BasicFileAttributes attributes(final String name) throws IOException {
+    load();
+    final Location location = index.get(name);
+    if (location == null) throw new NoSuchFileException(dir.resolve(name).toString());
+    return new EntryAttributes(location.length(), location.time());
+  }
+
+  synchronized void write(final String name, final byte[] bytes) throws IOException {
+    write(name, bytes, System.currentTimeMillis());
+  }
+
+  /**
+   * Appends an entry with the given last modified time, as when it is moved from its own file.
+   *
+   * @param name the name of the entry.
+   * @param bytes the (possibly compressed) bytes of the entry.
+   * @param time the last modified time of the entry, in milliseconds from the epoch.
+   * @throws IOException if some I/O error occurs.
+   */
+  synchronized void write(final String name, final byte[] bytes, final long time)
+      throws IOException {
+    load();
+    if (activeSize > 0 && activeSize + bytes.length > SEGMENT_SIZE) {
+      activeSegment++;
+      activeSize = 0;
+    }
+    final long offset = activeSize;
+    try (FileChannel channel =
+        FileChannel.open(
+            segment(activeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+    }
+    unsynced.add(activeSegment);
+    activeSize += bytes.length;
+    storedBytes += bytes.length;
+    final Location location = new Location(activeSegment, offset, bytes.length, time);
+    log(addition(name, location));
+    final Location replaced = index.put(name, location);
+    if (replaced != null) deadBytes += replaced.length();
+  }
+
+  /**
+   * Forces the segments written since the last call, and the index, to the storage device.
+   *
+   * @throws IOException if some I/O error occurs.
+   */
+  synchronized void sync() throws IOException {
+    for (int segment : unsynced)
+      try (FileChannel channel = FileChannel.open(segment(segment), StandardOpenOption.WRITE)) {
+        channel.force(true);
+      } catch (NoSuchFileException e) {
+        // compacted in the meantime, and compaction forces the new segments
+      }
+    unsynced.clear();
+    try (FileChannel channel = FileChannel.open(dir.resolve(INDEX), StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  synchronized boolean delete(final String name) throws IOException {
+    load();
+    if (!index.containsKey(name)) return false;
+    log("- " + name + "\n");
+    deadBytes += index.remove(name).length();
+    scheduleCompaction();
+    return true;
+  }
+
+  /**
+   * Deletes the given entries, appending their tombstones to the index at once.
+   *
+   * @param names the names of the entries.
+   * @return the names of the entries that were deleted, that is the ones that existed.
+   * @throws IOException if some I/O error occurs; in this case no entry is deleted.
+   */
+  synchronized List<String> delete(final List<String> names) throws IOException {
+    load();
+    final List<String> deleted = new ArrayList<>();
+    final StringBuilder log = new StringBuilder();
+    for (String name : new LinkedHashSet<>(names))
+      if (index.containsKey(name)) {
+        deleted.add(name);
+        log.append("- ").append(name).append('\n');
+      }
+    if (deleted.isEmpty()) return deleted;
+    log(log.toString());
+    for (String name : deleted) deadBytes += index.remove(name).length();
+    scheduleCompaction();
+    return deleted;
+  }
+
+  private void scheduleCompaction() {
+    if (!compactionScheduled
+        && deadBytes >= COMPACTION_MIN_DEAD
+        && deadBytes * 2 >= storedBytes) {
+      compactionScheduled = true;
+      COMPACTOR.execute(
+          () -> {
+            try {
+              compact();
+            } catch (IOException e) {
+              // the old segments and index are still valid, retry at the next deletion
+            }
+          });
+    }
+  }
+
+  /**
+   * Rewrites the live entries in new segments, replaces the index and deletes the old segments.
+   *
+   * <p>The store is locked only briefly, at the start and at the end: the current segment is sealed
+   * (so that later writes go to new segments), the live entries are copied out of the sealed
+   * segments while reads, writes and deletions go on, and then the entries deleted or replaced
+   * during the copy are left out, the copies are renamed to segments and the index is replaced.
+   * Only one compaction runs at a time; a compaction requested while another one runs returns
+   * immediately.
+   *
+   * @throws IOException if some I/O error occurs; in this case the store is left unchanged.
+   */
+  void compact() throws IOException {
+    final TreeMap<String, Location> live;
+    final int firstOld, lastOld;
+    final long sealedBytes;
+    synchronized (this) {
+      compactionScheduled = false;
+      load();
+      if (compacting || deadBytes == 0) return;
+      compacting = true;
+      live = new TreeMap<>(index);
+      firstOld = firstSegment();
+      lastOld = activeSegment;
+      sealedBytes = storedBytes;
+      activeSegment++;
+      activeSize = 0;
+    }
+    final List<Path> copies = new ArrayList<>();
+    try {
+      final TreeMap<String, Location> copied = copy(live, copies);
+      synchronized (this) {
+        swap(live, copied, copies, firstOld, lastOld, sealedBytes);
+      }
+    } finally {
+      for (Path copy : copies) Files.deleteIfExists(copy);
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  /*
+   * Copies the given live entries to new files (added to copies), returning their locations; the
+   * segment of a location is the index of its file in copies.
+   */
+  private TreeMap<String, Location> copy(
+      final TreeMap<String, Location> live, final List<Path> copies) throws IOException {
+    final TreeMap<String, Location> copied = new TreeMap<>();
+    long size = 0;
+    FileChannel out = null;
+    try {
+      for (Map.Entry<String, Location> entry : live.entrySet()) {
+        final Location old = entry.getValue();
+        if (out == null || size > 0 && size + old.length() > SEGMENT_SIZE) {
+          if (out != null) {
+            out.force(true);
+            out.close();
+          }
+          final Path copy = dir.resolve(COPY_PREFIX + copies.size());
+          Files.deleteIfExists(copy);
+          copies.add(copy);
+          out = FileChannel.open(copy, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+          size = 0;
+        }
+        try (FileChannel in = FileChannel.open(segment(old.segment()), StandardOpenOption.READ)) {
+          long done = 0;
+          while (done < old.length())
+            done += in.transferTo(old.offset() + done, old.length() - done, out);
+        }
+        copied.put(
+            entry.getKey(), new Location(copies.size() - 1, size, old.length(), old.time()));
+        size += old.length();
+      }
+      if (out != null) out.force(true);
+    } finally {
+      if (out != null) out.close();
+    }
+    return copied;
+  }
+
+  /*
+   * Renames the copies to segments following the current ones, replaces the index with the copied
+   * entries still unchanged since the copy started and the entries written since, and deletes the
+   * sealed segments.
+   */
+  private void swap(
+      final TreeMap<String, Location> live,
+      final TreeMap<String, Location> copied,
+      final List<Path> copies,
+      final int firstOld,
+      final int lastOld,
+      final long sealedBytes)
+      throws IOException {
+    final int firstNew = activeSegment + 1;
+    final TreeMap<String, Location> compacted = new TreeMap<>();
+    for (Map.Entry<String, Location> entry : index.entrySet()) {
+      final Location location = copied.get(entry.getKey());
+      if (location != null && entry.getValue().equals(live.get(entry.getKey())))
+        compacted.put(
+            entry.getKey(),
+            new Location(
+                firstNew + location.segment(),
+                location.offset(),
+                location.length(),
+                location.time()));
+      else compacted.put(entry.getKey(), entry.getValue());
+    }
+    long copiedBytes = 0;
+    for (int i = 0; i < copies.size(); i++) {
+      copiedBytes += Files.size(copies.get(i));
+      Files.move(copies.get(i), segment(firstNew + i), StandardCopyOption.ATOMIC_MOVE);
+    }
+    final StringBuilder log = new StringBuilder();
+    for (Map.Entry<String, Location> entry : compacted.entrySet())
+      log.append(addition(entry.getKey(), entry.getValue()));
+    final Path temp = dir.resolve(INDEX + ".tmp");
+    Files.writeString(temp, log, StandardCharsets.US_ASCII);
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(
+        temp,
+        dir.resolve(INDEX),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    for (int old = firstOld; old <= lastOld; old++) Files.deleteIfExists(segment(old));
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories can't be opened, hence synced, on some platforms
+    }
+    index = compacted;
+    unsynced.removeIf(segment -> segment <= lastOld);
+    if (!copies.isEmpty()) {
+      activeSegment = firstNew + copies.size() - 1;
+      activeSize = Files.size(segment(activeSegment));
+    }
+    storedBytes += copiedBytes - sealedBytes;
+    long liveBytes = 0;
+    for (Location location : compacted.values()) liveBytes += location.length();
+    deadBytes = storedBytes - liveBytes;
+  }
+
+  private int firstSegment() throws IOException {
+    int first = activeSegment;
+    try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*")) {
+      for (Path segment : segments)
+        first =
+            Math.min(
+                first,
+                Integer.parseInt(
+                    segment.getFileName().toString().substring(SEGMENT_PREFIX.length())));
+    }
+    return first;
+  }
+
+  private static String addition(final String name, final Location location) {
+    return String.format(
+        "+ %s %d %d %d %d\n",
+        name, location.segment(), location.offset(), location.length(), location.time());
+  }
+
+  private void log(final String line) throws IOException {
+    Files.writeString(
+        dir.resolve(INDEX),
+        line,
+        StandardCharsets.US_ASCII,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A read-only {@link Store} holding, on the heap, the boxes and entries that another store
+ * contained when the snapshot was taken.
+ *
+ * <p>Later changes to the other store are not reflected in the snapshot, and the snapshot itself
+ * can't be changed: the methods creating boxes and entries return {@code null}, and the ones
+ * deleting them return {@code false}, as they do when they fail. Sidecars are not part of the
+ * snapshot: reading them returns {@code null} and writing them returns {@code false}.
+ */
+public final class SnapshotStore implements Store {
+
+  private final List<Box> boxes;
+
+  private SnapshotStore(final Store source) {
+    final List<Box> boxes = new ArrayList<>();
+    for (Store.Box box : source.boxes()) boxes.add(new Box(source, box));
+    boxes.sort((b1, b2) -> b1.toString().compareTo(b2.toString()));
+    this.boxes = List.copyOf(boxes);
+  }
+
+  /**
+   * Takes a snapshot of the given store.
+   *
+   * <p>Entries keep their name and last modified time; references to the blob store of the given
+   * store (if any) are expanded.
+   *
+   * @param source the store.
+   * @return the snapshot.
+   * @throws NullPointerException if the store is {@code null}.
+   * @throws IllegalArgumentException if some entry of the store can't be read, or contains non
+   *     ASCII bytes.
+   */
+  public static SnapshotStore of(final Store source)
+      throws NullPointerException, IllegalArgumentException {
+    return new SnapshotStore(source);
+  }
+
+  /** A box of a {@link SnapshotStore}. */
+  public final class Box implements Store.Box {
+
+    /** An entry of a {@link SnapshotStore}. */
+    public final class Entry implements Store.Entry {
+      private final String name;
+      private final byte[] bytes;
+      private final long time;
+
+      private Entry(final Store source, final Store.Entry entry) {
+        this.name = entry.toString();
+        this.bytes = MemoryStore.content(source, entry);
+        this.time = MemoryStore.time(entry);
+      }
+
+      @Override
+      public ASCIICharSequence content() throws IllegalArgumentException {
+        return ASCIICharSequence.wrap(bytes, 0, bytes.length);
+      }
+
+      @Override
+      public ByteBuffer bytes() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+      }
+
+      @Override
+      public BasicFileAttributes attributes() {
+        return new EntryAttributes(bytes.length, time);
+      }
+
+      @Override
+      public boolean delete() {
+        return false;
+      }
+
+      @Override
+      public Box box() {
+        return Box.this;
+      }
+
+      @Override
+      public String toString() {
+        return name;
+      }
+    }
+
+    private final String name;
+    private final List<Entry> entries;
+
+    private Box(final Store source, final Store.Box box) {
+      this.name = box.toString();
+      final List<Entry> entries = new ArrayList<>();
+      for (Store.Entry entry : box.entries()) entries.add(new Entry(source, entry));
+      entries.sort((e1, e2) -> e1.toString().compareTo(e2.toString()));
+      this.entries = List.copyOf(entries);
+    }
+
+    @Override
+    public List<Entry> entries() {
+      return entries;
+    }
+
+    @Override
+    public Entry entry(final ASCIICharSequence content) throws NullPointerException {
+      Objects.requireNonNull(content);
+      return null;
+    }
+
+    @Override
+    public Box box(final String name) throws IllegalArgumentException, NullPointerException {
+      MemoryStore.checkName(name);
+      return null;
+    }
+
+    @Override
+    public boolean delete() {
+      return false;
+    }
+
+    @Override
+    public ASCIICharSequence sidecar(final String name)
+        throws IllegalArgumentException, NullPointerException {
+      MemoryStore.checkName(name);
+      return null;
+    }
+
+    @Override
+    public boolean sidecar(final String name, final ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      MemoryStore.checkName(name);
+      return false;
+    }
+
+    @Override
+    public boolean appendSidecar(final String name, final ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      MemoryStore.checkName(name);
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  @Override
+  public List<Box> boxes() {
+    return boxes;
+  }
+
+  @Override
+  public String toString() {
+    return "SnapshotStore";
+  }
+}
@@ -6,30 +6,175 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-/** Filesystem-based storage. */
-public class Storage {
+/**
+ * Filesystem-based storage.
+ *
+ * <p>Boxes are directories; how entries are stored in them depends on the {@link Layout} chosen
+ * when the storage is created. Files whose name starts with a dot are reserved to the storage
+ * itself and to its clients (see {@link Box#sidecar(String)}), so they never appear as {@link
+ * Box.Entry entries}; similarly, directories whose name starts with a dot (such as the one of the
+ * {@link #blobs() blob store}), and their subdirectories, are not {@link Box boxes}.
+ *
+ * <p>The listings of the directories (with the attributes of their files) are cached, and a cached
+ * listing is read again only if the last modified time (or the file key) of its directory changed,
+ * so that listing the boxes, or the entries of a box, of a quiet storage takes a single {@code
+ * stat} per directory. Since the last modified time has a limited resolution, listings taken less
+ * than {@value #RACY_MILLIS} ms after their directory was modified are not trusted. The attributes
+ * of an entry whose content is changed in place (which the storage never does) may thus be stale
+ * until its directory is modified.
+ */
+public class Storage implements Store {
 
   private static final Path EMPTY_PATH = Path.of("");
+
+  /** The size (in bytes) from which the content of an entry is mapped instead of read. */
+  private static final long MAP_THRESHOLD = 1 << 20;
+
+  /** The first bytes of a compressed entry; the first one is not ASCII, as no entry starts so. */
+  private static final byte[] COMPRESSED_MAGIC = {(byte) 0x89, 'M', 'Z', 1};
+
+  /**
+   * The largest ratio between the length of some bytes and the one of their deflated form, for any
+   * level; compressed entries claiming a larger length are corrupt.
+   */
+  private static final int MAX_COMPRESSION_RATIO = 1032;
+
+  private static final String SHARD_PREFIX = ".shard-";
+
+  /** The time (in milliseconds) a directory must be unmodified for its listing to be cached. */
+  private static final long RACY_MILLIS = 2000;
+
+  private record Listing(
+      FileTime modified,
+      Object key,
+      long listed,
+      List<Path> dirs,
+      Map<Path, BasicFileAttributes> files) {}
+
   private final Path baseDir;
+  private final Layout layout;
+  private final int compressionLevel;
+  private final Map<Path, SegmentStore> segmentStores = new ConcurrentHashMap<>();
+  private final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+  private GroupCommitter committer;
+  private BlobStore blobs;
+
+  /** The ways in which the entries of a box can be stored in its directory. */
+  public enum Layout {
+    /** Every entry is a file in the directory of its box. */
+    FILES,
+    /**
+     * The entries of a box are appended to a few large <em>segment</em> files in the directory of
+     * the box, with an index of their positions; deleted entries are reclaimed in background. See
+     * {@link Box#reshard()} to convert an existing box.
+     */
+    SEGMENTS,
+    /**
+     * Every entry is a file in one of (up to) {@value #SHARDS} hidden <em>shard</em> directories of
+     * the directory of its box, chosen by a hash of the name of the entry, so that no directory
+     * holds too many files; see {@link Box#reshard()} to convert an existing box.
+     */
+    SHARDED;
+
+    /** The number of shard directories of a box for the {@link #SHARDED} layout. */
+    public static final int SHARDS = 256;
+  }
 
   /**
    * Creates an instance of {@link #Storage} given the path of a directory.
    *
+   * <p>The entries are stored according to the {@link Layout#FILES} layout.
+   *
    * @param baseDir the path of the base directory of the storage.
    * @throws NullPointerException if the path is {@code null}.
    * @throws IllegalArgumentException if the path is not a directory.
    */
   public Storage(String baseDir) throws NullPointerException, IllegalArgumentException {
+    this(baseDir, Layout.FILES);
+  }
+
+  /**
+   * Creates an instance of {@link #Storage} given the path of a directory and a layout.
+   *
+   * @param baseDir the path of the base directory of the storage.
+   * @param layout the layout of the entries in the boxes.
+   * @throws NullPointerException if the path or the layout are {@code null}.
+   * @throws IllegalArgumentException if the path is not a directory.
+   */
+  public Storage(String baseDir, Layout layout)
+      throws NullPointerException, IllegalArgumentException {
+    this(baseDir, layout, 0);
+  }
+
+  /**
+   * Creates an instance of {@link #Storage} given the path of a directory, a layout and a
+   * compression level.
+   *
+   * <p>If the level is not {@code 0}, the entries created by this storage are compressed with
+   * {@link Deflater} at the given level (unless compression does not make them smaller), and
+   * prefixed by a magic header that allows them to coexist with uncompressed ones in the same box.
+   * Entries are decompressed transparently when read, whatever the level, so {@link
+   * Box.Entry#content()} and {@link Box.Entry#bytes()} always return the original content.
+   *
+   * @param baseDir the path of the base directory of the storage.
+   * @param layout the layout of the entries in the boxes.
+   * @param compressionLevel the compression level, from {@code 1} (fastest) to {@code 9} (best
+   *     compression), {@link Deflater#DEFAULT_COMPRESSION}, or {@code 0} to store the entries
+   *     uncompressed.
+   * @throws NullPointerException if the path or the layout are {@code null}.
+   * @throws IllegalArgumentException if the path is not a directory, or the level is not valid.
+   */
+  public Storage(String baseDir, Layout layout, int compressionLevel)
+      throws NullPointerException, IllegalArgumentException {
+    if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > 9)
+      throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+    this.compressionLevel = compressionLevel;
     this.baseDir = Path.of(Objects.requireNonNull(baseDir)).normalize().toAbsolutePath();
+    this.layout = Objects.requireNonNull(layout);
     if (!Files.isDirectory(this.baseDir))
       throw new IllegalArgumentException("Not a directory: " + this.baseDir);
   }
@@ -39,29 +184,112 @@ public class Storage {
    *
    * <p>A box is a collection of {@link Entry Entries}.
    */
-  public class Box {
+  public class Box implements Store.Box {
 
     /**
      * An entry.
      *
-     * <p>An entry is a sequence of bytes (stored in the filesystem).
+     * <p>An entry is a sequence of bytes (stored in the filesystem, as a file or as part of a
+     * segment).
      */
-    public class Entry {
+    public class Entry implements Store.Entry {
       private final Path entryPath;
+      private final BasicFileAttributes listed;
 
       private Entry(Path path) {
-        this.entryPath = baseDir.resolve(boxPath).relativize(path);
+        this(path, null);
+      }
+
+      private Entry(Path path, BasicFileAttributes listed) {
+        this.entryPath = path.getFileName();
+        this.listed = listed;
+      }
+
+      /**
+       * Returns the content of this entry, decompressed if needed.
+       *
+       * @return the bytes of the entry, or {@code null} if some {@link IOException} occurs.
+       * @throws IllegalArgumentException if the entry contains non ASCII bytes.
+       */
+      @Override
+      public ASCIICharSequence content() throws IllegalArgumentException {
+        try {
+          return ASCIICharSequence.of(read());
+        } catch (IOException e) {
+          return null;
+        }
       }
 
       /**
-       * Returns the content of this entry.
+       * Returns the bytes of this entry, decompressed if needed.
+       *
+       * <p>Entries smaller than 1 MiB are read in a heap buffer, larger ones are mapped in memory;
+       * compressed entries are then inflated in a heap buffer. In every case the buffer is
+       * read-only.
        *
        * @return the bytes of the entry, or {@code null} if some {@link IOException} occurs.
        */
-      public ASCIICharSequence content() {
+      @Override
+      public ByteBuffer bytes() {
         try {
-          return ASCIICharSequence.of(
-              Files.readAllBytes(baseDir.resolve(boxPath).resolve(entryPath)));
+          return read().asReadOnlyBuffer();
+        } catch (IOException e) {
+          return null;
+        }
+      }
+
+      private ByteBuffer read() throws IOException {
+        return decompress(readStored());
+      }
+
+      private ByteBuffer readStored() throws IOException {
+        if (layout == Layout.SEGMENTS) return segments().read(entryPath.toString());
+        try (FileChannel channel = FileChannel.open(path(), StandardOpenOption.READ)) {
+          final long size = channel.size();
+          if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+          final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+          while (buffer.hasRemaining()) if (channel.read(buffer) < 0) break;
+          return buffer.flip();
+        }
+      }
+
+      private Path path() {
+        final Path dir = baseDir.resolve(boxPath);
+        if (layout == Layout.SHARDED) return dir.resolve(shard(entryPath)).resolve(entryPath);
+        return dir.resolve(entryPath);
+      }
+
+      /**
+       * Returns the file of this entry, if it holds the bytes of the entry as they are.
+       *
+       * @return the path of the file, or {@code null} if the entry is part of a segment or is
+       *     compressed.
+       * @throws IOException if the file can't be read.
+       */
+      Path plainFile() throws IOException {
+        if (layout == Layout.SEGMENTS) return null;
+        final Path path = path();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          final ByteBuffer head = ByteBuffer.allocate(COMPRESSED_MAGIC.length);
+          while (head.hasRemaining()) if (channel.read(head) < 0) return path;
+          return Arrays.equals(head.array(), COMPRESSED_MAGIC) ? null : path;
+        }
+      }
+
+      /**
+       * Returns the basic attributes (such as size and last modified time) of this entry.
+       *
+       * <p>For the entries returned by {@link Box#entries()} these are the attributes read when
+       * the entries were listed.
+       *
+       * @return the attributes of the entry, or {@code null} if some {@link IOException} occurs.
+       */
+      @Override
+      public BasicFileAttributes attributes() {
+        if (listed != null) return listed;
+        try {
+          if (layout == Layout.SEGMENTS) return segments().attributes(entryPath.toString());
+          return Files.readAttributes(path(), BasicFileAttributes.class);
         } catch (IOException e) {
           return null;
         }
@@ -73,15 +301,41 @@ public class Storage {
        * @return if the entry was deleted (from the filesystem), or if some {@link IOException}
        *     occurred.
        */
+      @Override
       public boolean delete() {
         try {
-          Files.delete(baseDir.resolve(boxPath).resolve(entryPath));
+          if (layout == Layout.SEGMENTS) return segments().delete(entryPath.toString());
+          final Path path = path();
+          Files.delete(path);
+          listings.remove(path.getParent());
           return true;
         } catch (IOException e) {
           return false;
         }
       }
 
+      /**
+       * Returns the box containing this entry.
+       *
+       * @return the box.
+       */
+      @Override
+      public Box box() {
+        return Box.this;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        return obj instanceof Entry other
+            && box().equals(other.box())
+            && entryPath.equals(other.entryPath);
+      }
+
+      @Override
+      public int hashCode() {
+        return 31 * box().hashCode() + entryPath.hashCode();
+      }
+
       @Override
       public String toString() {
         final String nameExt = entryPath.toString();
@@ -96,6 +350,11 @@ public class Storage {
       this.boxPath = baseDir.relativize(path);
     }
 
+    private SegmentStore segments() {
+      return segmentStores.computeIfAbsent(
+          boxPath, p -> new SegmentStore(baseDir.resolve(p), MAP_THRESHOLD));
+    }
+
     /**
      * Creates a sub-box of this box.
      *
@@ -105,18 +364,75 @@ public class Storage {
      *     character.
      * @throws NullPointerException if the name is {@code null}.
      */
+    @Override
     public Box box(String name) throws IllegalArgumentException, NullPointerException {
       if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
       if (name.contains(File.separator)) throw new IllegalArgumentException();
       Path path = baseDir.resolve(boxPath).resolve(name);
       try {
         Files.createDirectory(path);
+        listings.remove(path.getParent());
         return new Box(path);
       } catch (IOException e) {
         return null;
       }
     }
 
+    /**
+     * Deletes the given entries of this box.
+     *
+     * <p>The files of the entries are deleted in parallel, and then every directory they were in
+     * is synced once, so that the deletions are durable; for the {@link Layout#SEGMENTS} layout the
+     * tombstones of the entries are appended to the index at once.
+     *
+     * @param entries the entries to delete.
+     * @return the entries that were deleted (from the filesystem); if some {@link IOException}
+     *     occurs for an entry, it is not among them.
+     * @throws IllegalArgumentException if some entry is not an entry of this box.
+     * @throws NullPointerException if the entries, or some of them, are {@code null}.
+     */
+    @Override
+    public List<Entry> deleteEntries(Collection<? extends Store.Entry> entries)
+        throws IllegalArgumentException, NullPointerException {
+      final Map<String, Entry> own = new LinkedHashMap<>();
+      for (Store.Entry entry : entries) {
+        if (!(entry instanceof Entry e) || !equals(e.box()))
+          throw new IllegalArgumentException("Not in " + this + ": " + entry);
+        own.put(e.entryPath.toString(), e);
+      }
+      if (own.isEmpty()) return List.of();
+      if (layout == Layout.SEGMENTS) {
+        final List<Entry> deleted = new ArrayList<>();
+        try {
+          for (String name : segments().delete(new ArrayList<>(own.keySet())))
+            deleted.add(own.get(name));
+          segments().sync();
+        } catch (IOException e) {
+          // the entries already in deleted are deleted, if not durably
+        }
+        return Collections.unmodifiableList(deleted);
+      }
+      final List<Entry> deleted =
+          own.values().parallelStream()
+              .filter(
+                  entry -> {
+                    try {
+                      Files.delete(entry.path());
+                      return true;
+                    } catch (IOException e) {
+                      return false;
+                    }
+                  })
+              .toList();
+      final Set<Path> dirs = new LinkedHashSet<>();
+      for (Entry entry : deleted) dirs.add(entry.path().getParent());
+      for (Path dir : dirs) {
+        listings.remove(dir);
+        syncDirectory(dir);
+      }
+      return deleted;
+    }
+
     /**
      * Deletes this box.
      *
@@ -126,51 +442,518 @@ public class Storage {
      * @return if the sub-box was deleted (from the filesystem), or if some {@link IOException}
      *     occurred.
      */
+    @Override
     public boolean delete() {
+      final Path path = baseDir.resolve(boxPath);
       try {
-        Files.delete(baseDir.resolve(boxPath));
+        if (layout == Layout.SEGMENTS && !segments().names().isEmpty()) return false;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+          for (Path child : children) if (!isHidden(child)) return false;
+        }
+        if (layout == Layout.SHARDED)
+          try (EntryStream entries = new EntryStream()) {
+            if (entries.iterator().hasNext()) return false;
+          }
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+          for (Path child : children) Files.delete(child);
+        }
+        Files.delete(path);
+        segmentStores.remove(boxPath);
+        listings.keySet().removeIf(p -> p.startsWith(path));
+        listings.remove(path.getParent());
+        return true;
+      } catch (IOException | DirectoryIteratorException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Reclaims the space taken by the deleted entries of this box.
+     *
+     * <p>This is done automatically in background for the {@link Layout#SEGMENTS} layout when
+     * enough entries have been deleted; for the {@link Layout#FILES} layout there is nothing to
+     * reclaim.
+     *
+     * @return if the space was reclaimed, or if some {@link IOException} occurred.
+     */
+    public boolean compact() {
+      if (layout != Layout.SEGMENTS) return true;
+      try {
+        segments().compact();
         return true;
       } catch (IOException e) {
         return false;
       }
     }
 
+    /**
+     * A stream of the entries of a box.
+     *
+     * <p>The entries are read from the filesystem incrementally, as they are requested, and are
+     * returned in the (unspecified) order in which the filesystem lists them; for the {@link
+     * Layout#SEGMENTS} layout the entries come from the in-memory index of the box, for the {@link
+     * Layout#SHARDED} layout the shards are listed one after the other. The stream can be iterated
+     * only once, and must be closed to release the underlying directory handles.
+     */
+    public class EntryStream implements Iterable<Entry>, Closeable {
+      private final Closeable stream;
+      private final Iterator<Path> paths;
+      private Iterator<Entry> iterator;
+
+      private EntryStream() throws IOException {
+        final Path dir = baseDir.resolve(boxPath);
+        if (layout == Layout.SEGMENTS) {
+          this.stream = () -> {};
+          this.paths = segments().names().stream().map(dir::resolve).iterator();
+        } else if (layout == Layout.SHARDED) {
+          final ShardIterator shards = new ShardIterator(dir);
+          this.stream = shards;
+          this.paths = shards;
+        } else {
+          final DirectoryStream<Path> stream =
+              Files.newDirectoryStream(dir, p -> !isHidden(p) && Files.isRegularFile(p));
+          this.stream = stream;
+          this.paths = stream.iterator();
+        }
+      }
+
+      /**
+       * Returns an iterator over the entries of this stream.
+       *
+       * @return the iterator.
+       * @throws IllegalStateException if the iterator has already been returned.
+       */
+      @Override
+      public Iterator<Entry> iterator() throws IllegalStateException {
+        if (iterator != null) throw new IllegalStateException("Already iterated");
+        iterator =
+            new Iterator<>() {
+              @Override
+              public boolean hasNext() {
+                return paths.hasNext();
+              }
+
+              @Override
+              public Entry next() {
+                if (!paths.hasNext()) throw new NoSuchElementException();
+                return new Entry(paths.next());
+              }
+            };
+        return iterator;
+      }
+
+      /**
+       * Returns the next page of entries of this stream.
+       *
+       * @param size the maximum number of entries in the page.
+       * @return the next (at most) {@code size} entries, or an empty list if the stream is over.
+       * @throws IllegalArgumentException if the size is not positive.
+       */
+      public List<Entry> page(int size) throws IllegalArgumentException {
+        if (size <= 0) throw new IllegalArgumentException();
+        if (iterator == null) iterator();
+        final List<Entry> page = new ArrayList<>(Math.min(size, 1024));
+        while (page.size() < size && iterator.hasNext()) page.add(iterator.next());
+        return page;
+      }
+
+      /** Closes this stream, releasing the underlying directory handle (if any). */
+      @Override
+      public void close() {
+        try {
+          stream.close();
+        } catch (IOException e) {
+          // nothing left to release
+        }
+      }
+    }
+
+    private class ShardIterator implements Iterator<Path>, Closeable {
+      private final Iterator<Path> shards;
+      private DirectoryStream<Path> stream;
+      private Iterator<Path> files = Collections.emptyIterator();
+
+      private ShardIterator(final Path dir) throws IOException {
+        final List<Path> shards = new ArrayList<>();
+        try (DirectoryStream<Path> children =
+            Files.newDirectoryStream(dir, p -> isShard(p) && Files.isDirectory(p))) {
+          for (Path shard : children) shards.add(shard);
+        }
+        this.shards = shards.iterator();
+      }
+
+      @Override
+      public boolean hasNext() {
+        while (!files.hasNext() && shards.hasNext()) {
+          close();
+          try {
+            stream =
+                Files.newDirectoryStream(
+                    shards.next(), p -> !isHidden(p) && Files.isRegularFile(p));
+          } catch (IOException e) {
+            throw new DirectoryIteratorException(e);
+          }
+          files = stream.iterator();
+        }
+        return files.hasNext();
+      }
+
+      @Override
+      public Path next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return files.next();
+      }
+
+      @Override
+      public void close() {
+        if (stream == null) return;
+        try {
+          stream.close();
+        } catch (IOException e) {
+          // nothing left to release
+        }
+        stream = null;
+      }
+    }
+
+    /**
+     * Opens a stream of the entries contained in this box.
+     *
+     * @return the stream of entries of this box, or {@code null} if some {@link IOException}
+     *     occurs.
+     */
+    public EntryStream openEntries() {
+      try {
+        return new EntryStream();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
     /**
      * Returns the entries contained in this box.
      *
+     * <p>The entries are sorted by name; see {@link #openEntries()} to read them incrementally.
+     * Unless the layout is {@link Layout#SEGMENTS}, the entries come from the cached listings of
+     * the directories of the box (see {@link Storage}), together with their attributes.
+     *
      * @return the entries of this box, or {@code null} if some {@link IOException} occurs.
      */
+    @Override
     public List<Entry> entries() {
+      final List<Entry> entries = new ArrayList<>();
+      if (layout == Layout.SEGMENTS) {
+        final EntryStream stream = openEntries();
+        if (stream == null) return Collections.emptyList();
+        try (stream) {
+          for (Entry entry : stream) entries.add(entry);
+        }
+      } else {
+        final Path dir = baseDir.resolve(boxPath);
+        try {
+          final Listing listing = listing(dir);
+          if (layout == Layout.SHARDED) {
+            for (Path shard : listing.dirs())
+              if (isShard(shard)) addEntries(listing(dir.resolve(shard)), entries);
+          } else addEntries(listing, entries);
+        } catch (IOException e) {
+          return Collections.emptyList();
+        }
+      }
+      entries.sort((e1, e2) -> e1.toString().compareTo(e2.toString()));
+      return Collections.unmodifiableList(entries);
+    }
+
+    private void addEntries(final Listing listing, final List<Entry> entries) {
+      for (Map.Entry<Path, BasicFileAttributes> file : listing.files().entrySet())
+        if (!isHidden(file.getKey())) entries.add(new Entry(file.getKey(), file.getValue()));
+    }
+
+    /**
+     * Returns the newest entries contained in this box, that is the last ones created, see {@link
+     * Store.Box#newest(int)}.
+     *
+     * <p>The entries are read with {@link #openEntries()}, keeping only the newest ones, so the
+     * cost of sorting all the entries is avoided.
+     *
+     * @param n the maximum number of entries to return.
+     * @return the (at most) {@code n} newest entries of this box, newest first.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     */
+    @Override
+    public List<Entry> newest(int n) throws IllegalArgumentException {
+      if (n < 0) throw new IllegalArgumentException("Negative number of entries: " + n);
+      final PriorityQueue<Entry> newest = new PriorityQueue<>(EntryNames.BY_CREATION);
+      final EntryStream stream = n == 0 ? null : openEntries();
+      if (stream == null) return Collections.emptyList();
+      try (stream) {
+        for (Entry entry : stream) {
+          newest.add(entry);
+          if (newest.size() > n) newest.poll();
+        }
+      } catch (DirectoryIteratorException e) {
+        return Collections.emptyList();
+      }
+      final List<Entry> sorted = new ArrayList<>(newest);
+      sorted.sort(EntryNames.BY_CREATION.reversed());
+      return Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns the content of a sidecar of this box.
+     *
+     * <p>A sidecar is a file, stored in the box alongside its entries but not listed among them,
+     * where clients can keep data about the box (such as an index of its entries).
+     *
+     * @param name the name of the sidecar.
+     * @return the content of the sidecar, or {@code null} if it does not exist or some {@link
+     *     IOException} occurs.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character, or the sidecar contains non ASCII bytes.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    @Override
+    public ASCIICharSequence sidecar(String name)
+        throws IllegalArgumentException, NullPointerException {
       try {
-        return Files.list(baseDir.resolve(boxPath))
-            .filter(Files::isRegularFile)
-            .map(Entry::new)
-            .sorted((e1, e2) -> e1.toString().compareTo(e2.toString()))
-            .toList();
+        return ASCIICharSequence.of(Files.readAllBytes(sidecarPath(name)));
       } catch (IOException e) {
-        return Collections.emptyList();
+        return null;
+      }
+    }
+
+    /**
+     * Replaces the content of a sidecar of this box.
+     *
+     * <p>The new content is written to a temporary file that is then moved over the sidecar, so
+     * that readers see either the old or the new content.
+     *
+     * @param name the name of the sidecar.
+     * @param content the new content of the sidecar.
+     * @return if the sidecar was written, or if some {@link IOException} occurred.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name or the content are {@code null}.
+     */
+    @Override
+    public boolean sidecar(String name, ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      Objects.requireNonNull(content);
+      final Path path = sidecarPath(name);
+      final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+      try {
+        Files.write(temp, content.sharedBytes());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Appends to the content of a sidecar of this box, creating it if it does not exist.
+     *
+     * @param name the name of the sidecar.
+     * @param content the content to append.
+     * @return if the content was appended, or if some {@link IOException} occurred.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name or the content are {@code null}.
+     */
+    @Override
+    public boolean appendSidecar(String name, ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException {
+      Objects.requireNonNull(content);
+      try {
+        Files.write(
+            sidecarPath(name),
+            content.sharedBytes(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND);
+        return true;
+      } catch (IOException e) {
+        return false;
       }
     }
 
+    private Path sidecarPath(String name) {
+      if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
+      if (name.contains(File.separator)) throw new IllegalArgumentException();
+      return baseDir.resolve(boxPath).resolve("." + name);
+    }
+
     /**
      * Creates an entry in this box.
      *
+     * <p>The name of the entry is greater than the one of every entry previously created by this
+     * process, so that {@link #entries()} lists the entries in order of creation.
+     *
      * @param content the content of the entry.
      * @return the entry, or {@code null} if some {@link IOException} occurs.
      * @throws NullPointerException if the content is {@code null}.
      */
+    @Override
     public Entry entry(ASCIICharSequence content) throws NullPointerException {
       Objects.requireNonNull(content);
-      final String name = UUID.randomUUID().toString();
-      final Path path = baseDir.resolve(boxPath).resolve(name);
       try {
-        Files.write(path, content.getASCIIBytes());
-        return new Entry(path);
+        return write(EntryNames.next(), content.sharedBytes());
       } catch (IOException e) {
         return null;
       }
     }
 
+    /**
+     * Creates an entry in this box, durably.
+     *
+     * <p>The entry is queued and written in background, together with the other entries queued in
+     * the meantime (in this or other boxes of the storage); the returned future is completed once
+     * the content of the entry, and its presence in the box, have been forced to the storage
+     * device. Callers can thus submit many entries without waiting for each one to be durable.
+     *
+     * @param content the content of the entry.
+     * @return a future completed with the entry once it is durable, or completed exceptionally
+     *     with the {@link IOException} that prevented writing or syncing it.
+     * @throws NullPointerException if the content is {@code null}.
+     */
+    @Override
+    public CompletableFuture<Entry> entryAsync(ASCIICharSequence content)
+        throws NullPointerException {
+      Objects.requireNonNull(content);
+      return committer().submit(this, EntryNames.next(), content.sharedBytes());
+    }
+
+    Entry write(String name, byte[] bytes) throws IOException {
+      bytes = compress(bytes);
+      final Path path = baseDir.resolve(boxPath).resolve(name);
+      if (layout == Layout.SEGMENTS) segments().write(name, bytes);
+      else if (layout == Layout.SHARDED) {
+        final Path shard = path.resolveSibling(shard(path.getFileName()));
+        Files.createDirectories(shard);
+        Files.write(shard.resolve(name), bytes);
+        listings.remove(path.getParent());
+        listings.remove(shard);
+      } else {
+        Files.write(path, bytes);
+        listings.remove(path.getParent());
+      }
+      return new Entry(path);
+    }
+
+    void sync(List<String> names) throws IOException {
+      final Path dir = baseDir.resolve(boxPath);
+      if (layout == Layout.SEGMENTS) {
+        segments().sync();
+        return;
+      }
+      final Set<Path> dirs = new LinkedHashSet<>();
+      for (String name : names) {
+        final Path entry = new Entry(dir.resolve(name)).path();
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.WRITE)) {
+          channel.force(true);
+        }
+        dirs.add(entry.getParent());
+      }
+      dirs.add(dir);
+      for (Path synced : dirs) syncDirectory(synced);
+    }
+
+    /**
+     * Moves the entries of this box to where the layout of this storage expects them.
+     *
+     * <p>For the {@link Layout#SHARDED} layout, the entries stored directly in the directory of the
+     * box (as in the {@link Layout#FILES} layout) are moved into their shards; for the {@link
+     * Layout#FILES} layout, the entries stored in shards are moved back into the directory of the
+     * box (and the emptied shards are deleted). Each entry is moved atomically, so the conversion
+     * can be interrupted and resumed by calling this method again; entries are not visible through
+     * this storage until they are moved.
+     *
+     * <p>For the {@link Layout#SEGMENTS} layout, the entries stored as files (directly in the
+     * directory of the box, or in shards) are appended to the segments of the box, keeping their
+     * last modified time; their files are deleted once the segments and the index are synced, so
+     * the conversion can be resumed as well (entries already in the segments are not appended
+     * again).
+     *
+     * @return if every entry was moved, or if some {@link IOException} occurred.
+     */
+    public boolean reshard() {
+      final Path dir = baseDir.resolve(boxPath);
+      try {
+        final Set<Path> dirs = new LinkedHashSet<>();
+        if (layout == Layout.SEGMENTS) {
+          final List<Path> files = new ArrayList<>(), shards = new ArrayList<>();
+          try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children)
+              if (isShard(child) && Files.isDirectory(child)) shards.add(child);
+              else if (!isHidden(child) && Files.isRegularFile(child)) files.add(child);
+          }
+          for (Path shard : shards)
+            try (DirectoryStream<Path> children =
+                Files.newDirectoryStream(shard, p -> !isHidden(p) && Files.isRegularFile(p))) {
+              for (Path file : children) files.add(file);
+            }
+          for (Path file : files) {
+            final String name = file.getFileName().toString();
+            if (segments().contains(name)) continue;
+            final long time = Files.getLastModifiedTime(file).toMillis();
+            segments().write(name, Files.readAllBytes(file), time);
+          }
+          segments().sync();
+          for (Path file : files) Files.delete(file);
+          for (Path shard : shards) Files.delete(shard);
+        } else if (layout == Layout.SHARDED) {
+          final List<Path> files = new ArrayList<>();
+          try (DirectoryStream<Path> children =
+              Files.newDirectoryStream(dir, p -> !isHidden(p) && Files.isRegularFile(p))) {
+            for (Path file : children) files.add(file);
+          }
+          for (Path file : files) {
+            final Path shard = dir.resolve(shard(file.getFileName()));
+            Files.createDirectories(shard);
+            Files.move(file, shard.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            dirs.add(shard);
+          }
+        } else {
+          final List<Path> shards = new ArrayList<>();
+          try (DirectoryStream<Path> children =
+              Files.newDirectoryStream(dir, p -> isShard(p) && Files.isDirectory(p))) {
+            for (Path shard : children) shards.add(shard);
+          }
+          for (Path shard : shards) {
+            final List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(shard)) {
+              for (Path file : children) files.add(file);
+            }
+            for (Path file : files)
+              Files.move(file, dir.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(shard);
+          }
+        }
+        dirs.add(dir);
+        for (Path synced : dirs) syncDirectory(synced);
+        return true;
+      } catch (IOException | DirectoryIteratorException e) {
+        return false;
+      } finally {
+        listings.keySet().removeIf(p -> p.startsWith(dir));
+      }
+    }
+
+    private Storage storage() {
+      return Storage.this;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Box other
+          && storage().equals(other.storage())
+          && boxPath.equals(other.boxPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return boxPath.hashCode();
+    }
+
     @Override
     public String toString() {
       if (boxPath.equals(EMPTY_PATH)) return "INBOX";
@@ -181,18 +964,289 @@ public class Storage {
   /**
    * Returns the boxes contained in this storage.
    *
+   * <p>Hidden directories (such as the shards of the {@link Layout#SHARDED} layout) are not
+   * descended into; the directories are listed through the cache described in {@link Storage}.
+   *
    * @return the list of boxes in the storage, or {@code null} if some {@link IOException} occurs.
    */
+  @Override
   public List<Storage.Box> boxes() {
+    final List<Storage.Box> boxes = new ArrayList<>();
     try {
-      return Files.walk(this.baseDir)
-          .filter(Files::isDirectory)
-          .map(Box::new)
-          .sorted((b1, b2) -> b1.toString().compareTo(b2.toString()))
-          .toList();
+      addBoxes(baseDir, boxes);
     } catch (IOException e) {
       return null;
     }
+    boxes.sort((b1, b2) -> b1.toString().compareTo(b2.toString()));
+    return Collections.unmodifiableList(boxes);
+  }
+
+  private void addBoxes(final Path dir, final List<Storage.Box> boxes) throws IOException {
+    boxes.add(new Box(dir));
+    for (Path child : listing(dir).dirs())
+      if (!isHidden(child)) addBoxes(dir.resolve(child), boxes);
+  }
+
+  private Listing listing(final Path dir) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+    final FileTime modified = attributes.lastModifiedTime();
+    final Listing cached = listings.get(dir);
+    if (cached != null
+        && cached.modified().equals(modified)
+        && Objects.equals(cached.key(), attributes.fileKey())
+        && cached.listed() - modified.toMillis() >= RACY_MILLIS) return cached;
+    final long listed = System.currentTimeMillis();
+    final List<Path> dirs = new ArrayList<>();
+    final Map<Path, BasicFileAttributes> files = new LinkedHashMap<>();
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        BasicFileAttributes childAttributes;
+        try {
+          childAttributes =
+              Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          if (childAttributes.isSymbolicLink()) {
+            childAttributes = Files.readAttributes(child, BasicFileAttributes.class);
+            if (childAttributes.isDirectory()) continue;
+          }
+        } catch (IOException e) {
+          continue; // deleted in the meantime, or not accessible
+        }
+        if (childAttributes.isDirectory()) dirs.add(child.getFileName());
+        else if (childAttributes.isRegularFile()) files.put(child.getFileName(), childAttributes);
+      }
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause();
+    }
+    final Listing listing =
+        new Listing(
+            modified,
+            attributes.fileKey(),
+            listed,
+            List.copyOf(dirs),
+            Collections.unmodifiableMap(files));
+    listings.put(dir, listing);
+    return listing;
+  }
+
+  /**
+   * Watches this storage for changes, notifying them to the given listener.
+   *
+   * <p>Changes are detected through the {@link WatchService} of the filesystem, so only the boxes
+   * and entries that actually changed are reported, including the ones made by other processes.
+   * An entry is reported as created once it has not been modified for a short while, so that
+   * entries are not notified while their content is still being written.
+   *
+   * @param listener the listener.
+   * @return a handle to stop watching the storage.
+   * @throws IOException if the storage can't be watched.
+   * @throws NullPointerException if the listener is {@code null}.
+   * @throws UnsupportedOperationException if the layout of the storage is not {@link
+   *     Layout#FILES}.
+   */
+  @Override
+  public Closeable watch(Listener listener)
+      throws IOException, NullPointerException, UnsupportedOperationException {
+    Objects.requireNonNull(listener);
+    if (layout != Layout.FILES) throw new UnsupportedOperationException("Layout: " + layout);
+    final Watcher watcher = new Watcher(listener);
+    final Thread thread = new Thread(watcher, "storage-watch: " + baseDir);
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+
+  private class Watcher implements Runnable, Closeable {
+    private static final long POLL_MILLIS = 100, QUIET_MILLIS = 200;
+
+    private final Listener listener;
+    private final WatchService service;
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private final Map<Path, Long> pending = new LinkedHashMap<>();
+
+    private Watcher(final Listener listener) throws IOException {
+      this.listener = listener;
+      this.service = baseDir.getFileSystem().newWatchService();
+      register(baseDir, false);
+    }
+
+    private void register(final Path root, final boolean created) throws IOException {
+      try (Stream<Path> paths = Files.walk(root)) {
+        for (Path dir : paths.filter(p -> !isReserved(p) && Files.isDirectory(p)).toList()) {
+          dirs.put(
+              dir.register(
+                  service,
+                  StandardWatchEventKinds.ENTRY_CREATE,
+                  StandardWatchEventKinds.ENTRY_DELETE,
+                  StandardWatchEventKinds.ENTRY_MODIFY),
+              dir);
+          if (!created) continue;
+          listener.boxCreated(new Box(dir));
+          try (DirectoryStream<Path> files =
+              Files.newDirectoryStream(dir, p -> !isHidden(p) && Files.isRegularFile(p))) {
+            for (Path file : files) pending.put(file, System.currentTimeMillis());
+          }
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final WatchKey key = service.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+          if (key != null) {
+            final Path dir = dirs.get(key);
+            if (dir != null) for (WatchEvent<?> event : key.pollEvents()) handle(dir, event);
+            key.reset();
+          }
+          final long quiet = System.currentTimeMillis() - QUIET_MILLIS;
+          final Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+          while (it.hasNext()) {
+            final Map.Entry<Path, Long> file = it.next();
+            if (file.getValue() > quiet) continue;
+            it.remove();
+            if (Files.isRegularFile(file.getKey()))
+              listener.entryCreated(new Box(file.getKey().getParent()).new Entry(file.getKey()));
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+    }
+
+    private void handle(final Path dir, final WatchEvent<?> event) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        listener.overflow(new Box(dir));
+        return;
+      }
+      final Path child = dir.resolve((Path) event.context());
+      if (isHidden(child)) return;
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+          try {
+            register(child, true);
+          } catch (IOException e) {
+            listener.overflow(new Box(dir));
+          }
+        else pending.put(child, System.currentTimeMillis());
+      } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+        if (pending.containsKey(child)) pending.put(child, System.currentTimeMillis());
+      } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+        final List<WatchKey> deleted = new ArrayList<>();
+        for (Map.Entry<WatchKey, Path> watched : dirs.entrySet())
+          if (watched.getValue().startsWith(child)) deleted.add(watched.getKey());
+        if (deleted.isEmpty()) {
+          if (pending.remove(child) == null) listener.entryDeleted(new Box(dir).new Entry(child));
+          return;
+        }
+        for (WatchKey key : deleted) {
+          key.cancel();
+          listener.boxDeleted(new Box(dirs.remove(key)));
+        }
+        pending.keySet().removeIf(p -> p.startsWith(child));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      service.close();
+    }
+  }
+
+  private byte[] compress(final byte[] bytes) {
+    if (compressionLevel == 0) return bytes;
+    final Deflater deflater = new Deflater(compressionLevel);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      out.writeBytes(COMPRESSED_MAGIC);
+      out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+      final byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+        if (out.size() >= bytes.length) return bytes;
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static ByteBuffer decompress(final ByteBuffer stored) throws IOException {
+    final int header = COMPRESSED_MAGIC.length + Integer.BYTES;
+    if (stored.remaining() < header) return stored;
+    for (int i = 0; i < COMPRESSED_MAGIC.length; i++)
+      if (stored.get(stored.position() + i) != COMPRESSED_MAGIC[i]) return stored;
+    final int length = stored.getInt(stored.position() + COMPRESSED_MAGIC.length);
+    final long deflated = stored.remaining() - header;
+    if (length < 0 || length > (deflated + 1) * MAX_COMPRESSION_RATIO)
+      throw new IOException("Invalid compressed entry length: " + length);
+    final byte[] bytes = new byte[length];
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(stored.duplicate().position(stored.position() + header));
+      int inflated = 0;
+      while (inflated < length) {
+        final int n = inflater.inflate(bytes, inflated, length - inflated);
+        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+          throw new IOException("Truncated compressed entry");
+        inflated += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed entry", e);
+    } finally {
+      inflater.end();
+    }
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private synchronized GroupCommitter committer() {
+    if (committer == null) committer = new GroupCommitter("storage-commit: " + baseDir);
+    return committer;
+  }
+
+  /**
+   * Returns the blob store of this storage, kept in its {@code .blobs} directory.
+   *
+   * @return the blob store.
+   */
+  @Override
+  public synchronized BlobStore blobs() {
+    if (blobs == null) blobs = new BlobStore(baseDir.resolve(".blobs"));
+    return blobs;
+  }
+
+  boolean hasBlobs() {
+    return !blobs().isEmpty();
+  }
+
+  private static boolean isHidden(Path path) {
+    return path.getFileName().toString().startsWith(".");
+  }
+
+  private static boolean isShard(final Path path) {
+    return path.getFileName().toString().startsWith(SHARD_PREFIX);
+  }
+
+  private static String shard(final Path name) {
+    final int hash = (name.toString().hashCode() * 0x9E3779B9) >>> 24;
+    return SHARD_PREFIX + HexFormat.of().toHexDigits((byte) hash);
+  }
+
+  private static void syncDirectory(final Path dir) {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories can't be opened, hence synced, on some platforms
+    }
+  }
+
+  private boolean isReserved(final Path dir) {
+    for (Path name : baseDir.relativize(dir)) if (name.toString().startsWith(".")) return true;
+    return false;
   }
 
   @Override
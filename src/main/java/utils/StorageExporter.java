@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the entries of a {@link Storage} into a single file, without decoding them.
+ *
+ * <p>The export takes two passes, each spreading the boxes over a pool of threads: the first one
+ * measures every entry, so that the position of every entry in the file is known (and follows the
+ * order of the boxes, and of the entries in every box, whatever the number of threads); the second
+ * one writes every entry at its position. Entries whose file holds their bytes as they are get
+ * transferred from their file with {@link FileChannel#transferFrom}, without copying them in
+ * memory; the others (compressed, stored in segments, referring to the blob store, or needing
+ * escapes in an mbox) are read, one at a time per thread, in both passes. The storage should not be
+ * modified while it is exported.
+ */
+public final class StorageExporter {
+
+  /** The formats of the exported file. */
+  public enum Format {
+    /**
+     * A classic Unix mbox, where every entry is preceded by a {@code From } line (with the last
+     * modified time of the entry) and followed by an empty line; the lines of the entries starting
+     * with {@code From } (possibly preceded by some {@code >}) are escaped with a further {@code
+     * >}.
+     */
+    MBOX,
+    /**
+     * A POSIX (ustar) tar archive, where every entry is a file named by the path of its box and
+     * its name, followed by a last file named {@value #INDEX} with a line {@code offset length
+     * name} for every entry, giving the position of its bytes in the archive.
+     */
+    ARCHIVE;
+
+    /** The name of the index of an {@link #ARCHIVE}. */
+    public static final String INDEX = "INDEX";
+  }
+
+  private static final int BLOCK = 512;
+  private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+  private static final DateTimeFormatter FROM_DATE =
+      DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ROOT)
+          .withZone(ZoneOffset.UTC);
+
+  private record Member(
+      String name, Storage.Box.Entry entry, Path file, long length, byte[] header, byte[] trailer) {
+    long size() {
+      return header.length + length + trailer.length;
+    }
+  }
+
+  private final Storage storage;
+  private final int parallelism;
+
+  /**
+   * Creates an exporter of the given storage.
+   *
+   * @param storage the storage.
+   * @param parallelism the number of threads reading the boxes.
+   * @throws NullPointerException if the storage is {@code null}.
+   * @throws IllegalArgumentException if the parallelism is not positive.
+   */
+  public StorageExporter(final Storage storage, final int parallelism)
+      throws NullPointerException, IllegalArgumentException {
+    if (parallelism < 1) throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    this.storage = Objects.requireNonNull(storage);
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Exports every entry of the storage to the given file, replacing it.
+   *
+   * <p>The file is written under a temporary name and then moved over the given one, so that it
+   * is never left incomplete.
+   *
+   * @param target the path of the file.
+   * @param format the format of the file.
+   * @throws IOException if some entry can't be read, or the file can't be written.
+   * @throws NullPointerException if the path or the format are {@code null}.
+   */
+  public void export(final Path target, final Format format)
+      throws IOException, NullPointerException {
+    Objects.requireNonNull(format);
+    final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    final List<Storage.Box> boxes = storage.boxes();
+    if (boxes == null) throw new IOException("Can't list the boxes of " + storage);
+    final boolean blobs = storage.hasBlobs();
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try (FileChannel out =
+        FileChannel.open(
+            temp,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      final List<Future<List<Member>>> measured = new ArrayList<>();
+      for (Storage.Box box : boxes)
+        measured.add(executor.submit(() -> measure(box, format, blobs)));
+      final List<List<Member>> members = new ArrayList<>();
+      for (Future<List<Member>> box : measured) members.add(get(box));
+      final StringBuilder index = new StringBuilder();
+      final List<Future<?>> written = new ArrayList<>();
+      long position = 0;
+      for (List<Member> box : members) {
+        final long start = position;
+        written.add(executor.submit(() -> write(box, out, start, format, blobs)));
+        for (Member member : box) {
+          if (format == Format.ARCHIVE)
+            index.append(position + member.header().length)
+                .append(' ')
+                .append(member.length())
+                .append(' ')
+                .append(member.name())
+                .append('\n');
+          position += member.size();
+        }
+      }
+      for (Future<?> box : written) get(box);
+      if (format == Format.ARCHIVE) {
+        final byte[] bytes = index.toString().getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer end = ByteBuffer.allocate(BLOCK + bytes.length + padding(bytes.length));
+        end.put(tarHeader(Format.INDEX, bytes.length, System.currentTimeMillis())).put(bytes);
+        write(out, end.clear(), position);
+        write(out, ByteBuffer.allocate(2 * BLOCK), position + end.capacity());
+      }
+      out.force(true);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    } finally {
+      executor.shutdownNow();
+    }
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private List<Member> measure(final Storage.Box box, final Format format, final boolean blobs)
+      throws IOException {
+    final String dir =
+        box.toString().equals("INBOX") ? "" : box.toString().replace(':', '/') + "/";
+    final List<Member> members = new ArrayList<>();
+    for (Storage.Box.Entry entry : box.entries()) {
+      final String name = dir + entry;
+      final BasicFileAttributes attributes = entry.attributes();
+      if (attributes == null) throw new IOException("Can't read entry " + name);
+      final long time = attributes.lastModifiedTime().toMillis();
+      Path file = null;
+      long length;
+      boolean newline = true;
+      if (format == Format.ARCHIVE && !blobs && (file = entry.plainFile()) != null)
+        length = attributes.size();
+      else {
+        final ByteBuffer stored = bytes(entry), content = transform(stored, format, blobs);
+        length = content.remaining();
+        newline = length == 0 || content.get(content.limit() - 1) == '\n';
+        if (content == stored) file = entry.plainFile();
+      }
+      if (format == Format.ARCHIVE)
+        members.add(
+            new Member(
+                name,
+                entry,
+                file,
+                length,
+                tarHeader(name, length, time),
+                new byte[padding(length)]));
+      else
+        members.add(
+            new Member(
+                name,
+                entry,
+                file,
+                length,
+                ("From MAILER-DAEMON " + FROM_DATE.format(Instant.ofEpochMilli(time)) + "\n")
+                    .getBytes(StandardCharsets.US_ASCII),
+                newline ? new byte[] {'\n'} : new byte[] {'\n', '\n'}));
+    }
+    return members;
+  }
+
+  private Void write(
+      final List<Member> members,
+      final FileChannel out,
+      long position,
+      final Format format,
+      final boolean blobs)
+      throws IOException {
+    for (Member member : members) {
+      write(out, ByteBuffer.wrap(member.header()), position);
+      position += member.header().length;
+      if (member.file() != null)
+        try (FileChannel in = FileChannel.open(member.file(), StandardOpenOption.READ)) {
+          long transferred = 0;
+          while (transferred < member.length()) {
+            final long n =
+                out.transferFrom(in, position + transferred, member.length() - transferred);
+            if (n <= 0) throw new IOException("Entry changed while exporting: " + member.name());
+            transferred += n;
+          }
+        }
+      else {
+        final ByteBuffer content = transform(bytes(member.entry()), format, blobs);
+        if (content.remaining() != member.length())
+          throw new IOException("Entry changed while exporting: " + member.name());
+        write(out, content, position);
+      }
+      position += member.length();
+      write(out, ByteBuffer.wrap(member.trailer()), position);
+      position += member.trailer().length;
+    }
+    return null;
+  }
+
+  private static ByteBuffer bytes(final Storage.Box.Entry entry) throws IOException {
+    final ByteBuffer bytes = entry.bytes();
+    if (bytes == null) throw new IOException("Can't read entry " + entry);
+    return bytes;
+  }
+
+  /** Returns the bytes to export for the given ones, the very same buffer if they are unchanged. */
+  private ByteBuffer transform(ByteBuffer bytes, final Format format, final boolean blobs) {
+    if (blobs) {
+      final ASCIICharSequence content = ASCIICharSequence.of(toArray(bytes));
+      final ASCIICharSequence expanded = storage.blobs().expand(content);
+      if (expanded != content) bytes = ByteBuffer.wrap(expanded.sharedBytes());
+    }
+    return format == Format.MBOX ? escape(bytes) : bytes;
+  }
+
+  private static ByteBuffer escape(final ByteBuffer bytes) {
+    ByteArrayOutputStream escaped = null;
+    int copied = bytes.position();
+    for (int line = bytes.position(); line < bytes.limit(); ) {
+      int i = line;
+      while (i < bytes.limit() && bytes.get(i) == '>') i++;
+      if (startsWithFrom(bytes, i)) {
+        if (escaped == null) escaped = new ByteArrayOutputStream(bytes.remaining() + 64);
+        escaped.writeBytes(toArray(bytes.duplicate().position(copied).limit(line)));
+        escaped.write('>');
+        copied = line;
+      }
+      while (i < bytes.limit() && bytes.get(i) != '\n') i++;
+      line = i + 1;
+    }
+    if (escaped == null) return bytes;
+    escaped.writeBytes(toArray(bytes.duplicate().position(copied)));
+    return ByteBuffer.wrap(escaped.toByteArray());
+  }
+
+  private static boolean startsWithFrom(final ByteBuffer bytes, final int position) {
+    if (bytes.limit() - position < FROM.length) return false;
+    for (int i = 0; i < FROM.length; i++) if (bytes.get(position + i) != FROM[i]) return false;
+    return true;
+  }
+
+  private static byte[] toArray(final ByteBuffer bytes) {
+    final byte[] array = new byte[bytes.remaining()];
+    bytes.duplicate().get(array);
+    return array;
+  }
+
+  private static byte[] tarHeader(final String name, final long size, final long time)
+      throws IOException {
+    final byte[] header = new byte[BLOCK];
+    final byte[] path = name.getBytes(StandardCharsets.US_ASCII);
+    int split = 0;
+    if (path.length > 100) {
+      split = name.indexOf('/', path.length - 101);
+      if (split <= 0 || split > 155) throw new IOException("Name too long for tar: " + name);
+    }
+    final int start = split == 0 ? 0 : split + 1;
+    System.arraycopy(path, start, header, 0, path.length - start);
+    System.arraycopy(path, 0, header, 345, split);
+    octal(header, 100, 8, 0644);
+    octal(header, 108, 8, 0);
+    octal(header, 116, 8, 0);
+    octal(header, 124, 12, size);
+    octal(header, 136, 12, time / 1000);
+    header[156] = '0';
+    System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int checksum = 0;
+    for (byte b : header) checksum += b & 0xff;
+    octal(header, 148, 7, checksum);
+    return header;
+  }
+
+  private static void octal(final byte[] header, final int offset, final int length, long value)
+      throws IOException {
+    final String digits = Long.toOctalString(value);
+    if (digits.length() > length - 1) throw new IOException("Value too large for tar: " + value);
+    final String padded = "0".repeat(length - 1 - digits.length()) + digits;
+    System.arraycopy(padded.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+    header[offset + length - 1] = 0;
+  }
+
+  private static int padding(final long length) {
+    return (int) ((BLOCK - length % BLOCK) % BLOCK);
+  }
+
+  private static void write(final FileChannel out, final ByteBuffer bytes, final long position)
+      throws IOException {
+    final ByteBuffer buffer = bytes.duplicate();
+    while (buffer.hasRemaining())
+      out.write(buffer, position + buffer.position() - bytes.position());
+  }
+
+  private static <T> T get(final Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while exporting", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) throw cause;
+      if (e.getCause() instanceof RuntimeException cause) throw cause;
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2024 Davide Garberi
+ *
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ */
+
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A store of encoded mail messages, organized in {@link Box boxes} of {@link Entry entries}.
+ *
+ * <p>This is the interface through which clients access stored messages, so that they can work
+ * with any implementation: {@link Storage} keeps the entries in the filesystem, {@link
+ * MemoryStore} keeps them on the heap and {@link SnapshotStore} is a read-only copy of another
+ * store taken at some point in time.
+ */
+public interface Store {
+
+  /**
+   * A box, that is a collection of {@link Entry entries}.
+   *
+   * <p>Boxes are identified by their name, see {@link #toString()}.
+   */
+  interface Box {
+
+    /**
+     * Returns the entries contained in this box.
+     *
+     * @return the entries of this box, sorted by name.
+     */
+    List<? extends Entry> entries();
+
+    /**
+     * Returns the newest entries contained in this box, that is the last ones created.
+     *
+     * <p>Entries created by {@link #entry(ASCIICharSequence)} have names that follow their order of
+     * creation, so they are put in order by name, without reading their content; other entries
+     * (for example the ones created by older versions) are put in order by their last modified
+     * time. This implementation sorts the entries of {@link #entries()} in such order.
+     *
+     * @param n the maximum number of entries to return.
+     * @return the (at most) {@code n} newest entries of this box, newest first.
+     * @throws IllegalArgumentException if {@code n} is negative.
+     */
+    default List<? extends Entry> newest(int n) throws IllegalArgumentException {
+      if (n < 0) throw new IllegalArgumentException("Negative number of entries: " + n);
+      final List<Entry> entries = new ArrayList<>(entries());
+      entries.sort(EntryNames.BY_CREATION.reversed());
+      return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * Creates an entry in this box.
+     *
+     * <p>The name of the entry is greater than the one of every entry previously created in the
+     * same process, so that the order of the names is the order of creation.
+     *
+     * @param content the content of the entry.
+     * @return the entry, or {@code null} if it can't be created (as is always the case if the
+     *     store is read-only).
+     * @throws NullPointerException if the content is {@code null}.
+     */
+    Entry entry(ASCIICharSequence content) throws NullPointerException;
+
+    /**
+     * Creates an entry in this box, durably; the returned future is completed once the entry is
+     * stored.
+     *
+     * <p>This implementation creates the entry with {@link #entry(ASCIICharSequence)}.
+     *
+     * @param content the content of the entry.
+     * @return a future completed with the entry, or completed exceptionally if it can't be
+     *     created (as is always the case if the store is read-only).
+     * @throws NullPointerException if the content is {@code null}.
+     */
+    default CompletableFuture<? extends Entry> entryAsync(ASCIICharSequence content)
+        throws NullPointerException {
+      final Entry entry = entry(content);
+      if (entry == null)
+        return CompletableFuture.failedFuture(new IOException("Can't create entry in " + this));
+      return CompletableFuture.completedFuture(entry);
+    }
+
+    /**
+     * Creates a sub-box of this box.
+     *
+     * @param name the name of the sub-box.
+     * @return the sub-box, or {@code null} if it can't be created (as is always the case if the
+     *     store is read-only).
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    Box box(String name) throws IllegalArgumentException, NullPointerException;
+
+    /**
+     * Deletes the given entries of this box.
+     *
+     * <p>This implementation deletes the entries one at a time, with {@link Entry#delete()}.
+     *
+     * @param entries the entries to delete.
+     * @return the entries that were deleted (none, if the store is read-only).
+     * @throws IllegalArgumentException if some entry is not an entry of this box.
+     * @throws NullPointerException if the entries, or some of them, are {@code null}.
+     */
+    default List<? extends Entry> deleteEntries(Collection<? extends Entry> entries)
+        throws IllegalArgumentException, NullPointerException {
+      final List<Entry> deleted = new ArrayList<>();
+      for (Entry entry : entries) {
+        if (!equals(entry.box()))
+          throw new IllegalArgumentException("Not in " + this + ": " + entry);
+        if (entry.delete()) deleted.add(entry);
+      }
+      return deleted;
+    }
+
+    /**
+     * Deletes this box, if it is empty.
+     *
+     * @return if the box was deleted ({@code false}, if the store is read-only).
+     */
+    boolean delete();
+
+    /**
+     * Returns the content of a sidecar of this box.
+     *
+     * <p>A sidecar is a named sequence of bytes, stored in the box alongside its entries but not
+     * listed among them, where clients can keep data about the box (such as an index).
+     *
+     * @param name the name of the sidecar.
+     * @return the content of the sidecar, or {@code null} if it does not exist or can't be read.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    ASCIICharSequence sidecar(String name) throws IllegalArgumentException, NullPointerException;
+
+    /**
+     * Replaces the content of a sidecar of this box.
+     *
+     * @param name the name of the sidecar.
+     * @param content the new content of the sidecar.
+     * @return if the sidecar was written.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name or the content are {@code null}.
+     */
+    boolean sidecar(String name, ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException;
+
+    /**
+     * Appends to the content of a sidecar of this box, creating it if it does not exist.
+     *
+     * @param name the name of the sidecar.
+     * @param content the content to append.
+     * @return if the content was appended.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name or the content are {@code null}.
+     */
+    boolean appendSidecar(String name, ASCIICharSequence content)
+        throws IllegalArgumentException, NullPointerException;
+
+    /**
+     * Returns the name of this box: {@code INBOX} for the root box, otherwise the path of the box
+     * from the root, with {@code :} as separator.
+     *
+     * @return the name of the box.
+     */
+    @Override
+    String toString();
+  }
+
+  /** An entry, that is a sequence of ASCII bytes stored in a {@link Box}. */
+  interface Entry {
+
+    /**
+     * Returns the content of this entry.
+     *
+     * @return the content of the entry, or {@code null} if it can't be read.
+     * @throws IllegalArgumentException if the entry contains non ASCII bytes.
+     */
+    ASCIICharSequence content() throws IllegalArgumentException;
+
+    /**
+     * Returns the bytes of this entry.
+     *
+     * @return a read-only buffer with the bytes of the entry, or {@code null} if they can't be
+     *     read.
+     */
+    ByteBuffer bytes();
+
+    /**
+     * Returns the basic attributes (such as size and last modified time) of this entry.
+     *
+     * @return the attributes of the entry, or {@code null} if they can't be read.
+     */
+    BasicFileAttributes attributes();
+
+    /**
+     * Deletes this entry.
+     *
+     * @return if the entry was deleted ({@code false}, if the store is read-only).
+     */
+    boolean delete();
+
+    /**
+     * Returns the box containing this entry.
+     *
+     * @return the box.
+     */
+    Box box();
+
+    /**
+     * Returns the name of this entry, unique in its box.
+     *
+     * @return the name of the entry.
+     */
+    @Override
+    String toString();
+  }
+
+  /**
+   * A listener of the changes made to a store, see {@link #watch(Listener)}.
+   *
+   * <p>The methods of the listener are called from a background thread.
+   */
+  interface Listener {
+    /**
+     * Called when an entry is created.
+     *
+     * @param entry the entry.
+     */
+    void entryCreated(Entry entry);
+
+    /**
+     * Called when an entry is deleted.
+     *
+     * @param entry the (no longer existing) entry.
+     */
+    void entryDeleted(Entry entry);
+
+    /**
+     * Called when a box is created; the entries it already contains are notified after it.
+     *
+     * @param box the box.
+     */
+    void boxCreated(Box box);
+
+    /**
+     * Called when a box is deleted.
+     *
+     * @param box the (no longer existing) box.
+     */
+    void boxDeleted(Box box);
+
+    /**
+     * Called when some changes to a box may have been lost, so that its entries should be listed
+     * again.
+     *
+     * @param box the box.
+     */
+    void overflow(Box box);
+  }
+
+  /**
+   * Returns the boxes contained in this store.
+   *
+   * @return the list of boxes in the store, sorted by name, or {@code null} if they can't be
+   *     listed.
+   */
+  List<? extends Box> boxes();
+
+  /**
+   * Returns the blob store of this store, see {@link BlobStore}.
+   *
+   * <p>This implementation returns {@code null}.
+   *
+   * @return the blob store, or {@code null} if this store has none.
+   */
+  default BlobStore blobs() {
+    return null;
+  }
+
+  /**
+   * Watches this store for changes made by others, notifying them to the given listener.
+   *
+   * <p>This implementation throws {@link UnsupportedOperationException}.
+   *
+   * @param listener the listener.
+   * @return a handle to stop watching the store.
+   * @throws IOException if the store can't be watched.
+   * @throws NullPointerException if the listener is {@code null}.
+   * @throws UnsupportedOperationException if the store can't be watched.
+   */
+  default Closeable watch(Listener listener)
+      throws IOException, NullPointerException, UnsupportedOperationException {
+    Objects.requireNonNull(listener);
+    throw new UnsupportedOperationException("Can't watch " + this);
+  }
+}
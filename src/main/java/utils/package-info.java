@@ -9,9 +9,12 @@
  *   <li>The simple encoding classes {@link utils.AddressEncoding}, {@link utils.Base64Encoding},
  *       {@link utils.DateEncoding} deal with encoding and decoding of simple types.
  *   <li>The more complex {@link utils.EntryEncoding} and {@link Fragment} classes deal with
- *       encoding and decoding of mail messages.
- *   <li>The {@link utils.Storage} class is a class that allows to save and retrieve encoded mail
- *       messages from disk.
+ *       encoding and decoding of mail messages; {@link utils.EntryParser} decodes them
+ *       incrementally, while they arrive.
+ *   <li>The {@link utils.Store} interface allows to save and retrieve encoded mail messages; the
+ *       {@link utils.Storage} class implements it on disk, while {@link utils.MemoryStore} and
+ *       {@link utils.SnapshotStore} implement it on the heap; {@link utils.StorageExporter} exports
+ *       a whole {@link utils.Storage} to a single file.
  *   <li>The user interface classes {@link utils.UIInteract}, {@link utils.UICard} and {@link
  *       utils.UITable} deal with user interaction.
  *   <li>The {@link utils.Faker} class is a class that generates random data, useful for testing.